@@ -28,7 +28,8 @@ public interface ContentManager {
 	List<ContentItem> getRemoteContentItems();
 
 	/**
-	 * Checks if any local content item has update
+	 * Checks if any local content item has update.
+	 * Items which digest still computed in background are skipped.
 	 */
 	boolean checkUpdates();
 
@@ -42,8 +43,9 @@ public interface ContentManager {
 	/**
 	 * Prepare content item to use
 	 * @param contentItem content item
+	 * @return true if item prepared, false if it can't be unpacked
 	 */
-	void unpackContentItem(ContentItem contentItem);
+	boolean unpackContentItem(ContentItem contentItem);
 
 	/**
 	 * Mark content item as used. Only one item of each content type can be active at a time
@@ -56,6 +58,9 @@ public interface ContentManager {
 	/**
 	 * Download remote content item
 	 *
+	 * If previous download of the same item was interrupted, download continues from
+	 * last committed position when possible
+	 *
 	 * @param networkContentItem remote content item
 	 * @return local content item
 	 */
@@ -84,7 +89,43 @@ public interface ContentManager {
 	 */
 	List<ContentItem> findSuggestedItems(Location location);
 
+	/**
+	 * Find local items which regions intersect rectangle.
+	 * Items which region unknown are ignored.
+	 */
+	List<ContentItem> findContentItemsInBounds(double minLat, double minLon, double maxLat, double maxLon);
+
+	/**
+	 * Find remote items which regions intersect rectangle
+	 */
+	List<ContentItem> findSuggestedItemsInBounds(double minLat, double minLon, double maxLat, double maxLon);
+
+	/**
+	 * Find content items covering route corridor.
+	 *
+	 * Local items preferred, remote items selected only for parts of route that local items don't cover.
+	 * Items which region unknown are ignored.
+	 *
+	 * @param route route points
+	 * @param corridorWidth corridor width in meters
+	 * @return local and remote items covering route
+	 */
+	RoutePlan planRoute(List<Location> route, double corridorWidth);
+
 	interface Listener {
 		void downloadStateUpdated(ContentItem item, int downloaded, int max);
+
+		/**
+		 * Called when digests of all local content items computed in background
+		 */
+		void localHashesReady();
+
+		/**
+		 * Called when local content items added, removed or replaced
+		 * @param added new items
+		 * @param removed removed items
+		 * @param changed new versions of items which files were replaced
+		 */
+		void localListChanged(List<ContentItem> added, List<ContentItem> removed, List<ContentItem> changed);
 	}
 }
@@ -3,12 +3,16 @@ package org.fruct.oss.mapcontent.content;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.location.Location;
+import android.os.FileObserver;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 
 import org.fruct.oss.mapcontent.content.contenttype.ContentType;
+import org.fruct.oss.mapcontent.content.download.ResumableDownload;
+import org.fruct.oss.mapcontent.content.download.SegmentedDownload;
 import org.fruct.oss.mapcontent.content.utils.DigestInputStream;
 import org.fruct.oss.mapcontent.content.utils.DirUtil;
+import org.fruct.oss.mapcontent.content.utils.MirrorSelector;
 import org.fruct.oss.mapcontent.content.utils.ProgressInputStream;
 import org.fruct.oss.mapcontent.content.utils.Region;
 import org.fruct.oss.mapcontent.content.utils.RegionCache;
@@ -27,8 +31,10 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.zip.GZIPInputStream;
 
 public class ContentManagerImpl implements ContentManager {
@@ -38,46 +44,105 @@ public class ContentManagerImpl implements ContentManager {
 	public static final String MAPSFORGE_MAP = "mapsforge-map";
 	public static final String SAFEGUARD_STRING = "content-manager";
 
-	private String contentRootPath;
+	// Changed by migration on bulk lane, read by interactive lane
+	private volatile String contentRootPath;
 	private KeyValue digestCache;
+	private final KeyValue metadataIndex;
 
 	private final SharedPreferences pref;
 
 	private final WritableDirectoryStorage mainLocalStorage;
-	private final List<ContentStorage> localStorages = new ArrayList<ContentStorage>();
+	private final List<DirectoryStorage> localStorages = new ArrayList<DirectoryStorage>();
+	private final List<FileObserver> storageObservers = new ArrayList<>();
+	private final LocalCatalog localCatalog = new LocalCatalog();
 	private final HashMap<String, ContentType> contentTypes = new HashMap<>();
 	private final RegionCache regionCache;
+	private final MirrorSelector mirrorSelector;
+	private final HashWarmer hashWarmer = new HashWarmer();
 
-	private List<ContentItem> localContentItems = Collections.emptyList();
-	private List<ContentItem> remoteContentItems = Collections.emptyList();
+	private volatile List<ContentItem> remoteContentItems = Collections.emptyList();
 
-	private Listener listener;
+	// Serializes updates of remote catalog and its saved copy
+	private final Object remoteLock = new Object();
+
+	// Last loaded or fetched catalog, its documents revalidated by next refresh. Guarded by remoteLock
+	private NetworkStorage catalog;
+
+	// Lock per unpacked directory, so region check and prefetch don't unpack the same item twice
+	private final Map<String, Object> unpackLocks = new HashMap<>();
+
+	private volatile Listener listener;
 	private boolean disableRegions6;
 
 	public ContentManagerImpl(Context context,
 							  String contentRootPath,
 							  KeyValue digestCache,
 							  RegionCache regionCache,
+							  MirrorSelector mirrorSelector,
 							  HashMap<String, ContentType> contentTypes,
 							  boolean disableRegions6) {
+		this(context, contentRootPath, digestCache, regionCache, mirrorSelector, contentTypes, disableRegions6, null);
+	}
+
+	/**
+	 * @param listener listener set before initial scan, so events of background hashing started by scan
+	 *                 can't be missed
+	 */
+	public ContentManagerImpl(Context context,
+							  String contentRootPath,
+							  KeyValue digestCache,
+							  RegionCache regionCache,
+							  MirrorSelector mirrorSelector,
+							  HashMap<String, ContentType> contentTypes,
+							  boolean disableRegions6,
+							  Listener listener) {
+		this.listener = listener;
 		this.disableRegions6 = disableRegions6;
 		this.contentRootPath = contentRootPath;
 		this.digestCache = digestCache;
 		this.regionCache = regionCache;
+		this.mirrorSelector = mirrorSelector;
 
 		pref = PreferenceManager.getDefaultSharedPreferences(context);
+		metadataIndex = new KeyValue(context, "metadataindex");
 
-		mainLocalStorage = new WritableDirectoryStorage(digestCache, contentRootPath + "/content-manager/storage");
+		mainLocalStorage = new WritableDirectoryStorage(digestCache, metadataIndex,
+				contentRootPath + "/content-manager/storage");
 
 		String[] additionalStoragePaths = DirUtil.getExternalDirs(context);
 		for (String path : additionalStoragePaths) {
-			DirectoryStorage storage = new DirectoryStorage(digestCache, path);
+			DirectoryStorage storage = new DirectoryStorage(digestCache, metadataIndex, path);
 			localStorages.add(storage);
+
+			// Other applications can put content files to external directories
+			storageObservers.add(new StorageObserver(storage));
 		}
 
 		this.contentTypes.putAll(contentTypes);
 
+		hashWarmer.setListener(new HashWarmer.Listener() {
+			@Override
+			public void hashesReady() {
+				Listener listener = ContentManagerImpl.this.listener;
+				if (listener != null) {
+					listener.localHashesReady();
+				}
+			}
+		});
+
+		localCatalog.setListener(new LocalCatalog.Listener() {
+			@Override
+			public void localCatalogChanged(LocalCatalog.Change change) {
+				Listener listener = ContentManagerImpl.this.listener;
+				if (listener != null) {
+					listener.localListChanged(change.added, change.removed, change.changed);
+				}
+			}
+		});
+
 		refreshLocalItemsList();
+		startWatching();
+		loadSavedRemoteContentList();
 
 		String activeUnpackedDir = getActiveUnpacked(GRAPHHOPPER_MAP);
 		if (activeUnpackedDir != null) {
@@ -88,26 +153,80 @@ public class ContentManagerImpl implements ContentManager {
 		this.listener = listener;
 	}
 
+	/**
+	 * Release background resources and metadata index. Manager must not be used after close,
+	 * so caller must wait until tasks using it finished.
+	 */
+	public void close() {
+		stopWatching();
+		hashWarmer.shutdown();
+		metadataIndex.close();
+	}
+
+	private void startWatching() {
+		for (FileObserver observer : storageObservers) {
+			observer.startWatching();
+		}
+	}
+
+	private void stopWatching() {
+		for (FileObserver observer : storageObservers) {
+			observer.stopWatching();
+		}
+	}
+
 	@Override
 	public void refreshRemoteContentList(String[] rootUrls) throws IOException {
-		NetworkStorage networkStorage = new NetworkStorage(rootUrls, regionCache);
+		synchronized (remoteLock) {
+			NetworkStorage networkStorage = new NetworkStorage(rootUrls, regionCache, mirrorSelector);
 
-		networkStorage.updateContentList();
-		List<ContentItem> remoteItems = new ArrayList<>();
-		List<ContentItem> loadedItems = networkStorage.getContentList();
+			// Known documents with their validators let server skip unchanged documents
+			if (catalog != null) {
+				networkStorage.setCachedDocuments(catalog);
+			}
+			networkStorage.updateContentList();
+			remoteContentItems = filterRemoteItems(networkStorage.getContentList());
+			catalog = networkStorage;
+
+			try {
+				networkStorage.saveCatalog(getRemoteCatalogFile());
+			} catch (IOException e) {
+				log.warn("Can't save remote catalog", e);
+			}
+		}
+	}
+
+	/**
+	 * Restore remote catalog of previous refresh, so remote items available before network refresh
+	 */
+	private void loadSavedRemoteContentList() {
+		NetworkStorage networkStorage = new NetworkStorage(new String[0], regionCache, mirrorSelector);
+		if (networkStorage.loadCatalog(getRemoteCatalogFile())) {
+			synchronized (remoteLock) {
+				remoteContentItems = filterRemoteItems(networkStorage.getContentList());
+				catalog = networkStorage;
+			}
+			log.info("Saved remote catalog loaded, fetched at {}", networkStorage.getFetchTime());
+		}
+	}
 
+	private List<ContentItem> filterRemoteItems(List<ContentItem> loadedItems) {
+		List<ContentItem> remoteItems = new ArrayList<>();
 		for (ContentItem loadedItem : loadedItems) {
 			if (contentTypes.containsKey(loadedItem.getType())) {
 				remoteItems.add(loadedItem);
 			}
 		}
+		return remoteItems;
+	}
 
-		remoteContentItems = remoteItems;
+	private File getRemoteCatalogFile() {
+		return new File(contentRootPath, "content-manager/remote-catalog.json.gz");
 	}
 	@Override
 	@NonNull
 	public List<ContentItem> getLocalContentItems() {
-		return localContentItems;
+		return localCatalog.getItems();
 	}
 
 	@Override
@@ -119,7 +238,7 @@ public class ContentManagerImpl implements ContentManager {
 	@Override
 	public boolean checkUpdates() {
 		List<ContentItem> remoteContentItems = this.remoteContentItems;
-		List<ContentItem> localContentItems = this.localContentItems;
+		List<ContentItem> localContentItems = localCatalog.getItems();
 
 		if (remoteContentItems == null) {
 			return false;
@@ -132,7 +251,13 @@ public class ContentManagerImpl implements ContentManager {
 
 		for (ContentItem remoteContentItem : remoteContentItems) {
 			ContentItem localContentItem = nameToItemMap.get(remoteContentItem.getName());
-			if (localContentItem != null && !localContentItem.getHash().equals(remoteContentItem.getHash())) {
+			if (localContentItem == null) {
+				continue;
+			}
+
+			// Items with pending hash checked again when hash warmer finishes
+			String localHash = ((DirectoryContentItem) localContentItem).getCachedHash();
+			if (localHash != null && !localHash.equals(remoteContentItem.getHash())) {
 				return true;
 			}
 		}
@@ -142,31 +267,72 @@ public class ContentManagerImpl implements ContentManager {
 
 	@Override
 	public List<ContentItem> findContentItemsByRegion(Location location) {
-		List<ContentItem> localContentItems = this.localContentItems;
+		List<ContentItem> localContentItems = localCatalog.getItems();
 
 		List<ContentItem> matchingItems = new ArrayList<>();
+		Set<String> candidateRegions = regionCache.findCandidateRegions(location.getLatitude(),
+				location.getLongitude());
 
 		for (ContentItem contentItem : localContentItems) {
-			// TODO: this ContentType retrieving can be optimized
-			ContentType contentType = contentTypes.get(contentItem.getType());
-			String contentItemPackageFile = ((DirectoryContentItem) contentItem).getPath();
-			Region region = regionCache.getRegion(contentItem.getRegionId());
-
-			// Try load region from content item package
-			if (region == null) {
-				region = contentType.extractRegion(contentItem, contentItemPackageFile);
+			// Region index rejects most of items without loading polygons
+			if (regionCache.getRegionDesc(contentItem.getRegionId()) != null
+					&& !candidateRegions.contains(contentItem.getRegionId())) {
+				continue;
 			}
 
+			Region region = getLocalItemRegion(contentItem);
+
 			if (region == null) {
 				// Content item can't provide region
+				ContentType contentType = contentTypes.get(contentItem.getType());
+				String contentItemPackageFile = ((DirectoryContentItem) contentItem).getPath();
 				if (contentType.checkRegion(contentItem, contentItemPackageFile, location)) {
 					matchingItems.add(contentItem);
 				}
-			} else {
-				regionCache.putRegion(contentItem.getRegionId(), region);
-				if (region.testHit(location.getLatitude(), location.getLongitude())) {
-					matchingItems.add(contentItem);
-				}
+			} else if (region.testHit(location.getLatitude(), location.getLongitude())) {
+				matchingItems.add(contentItem);
+			}
+		}
+
+		return matchingItems;
+	}
+
+	/**
+	 * Region of local item from region cache or from item package
+	 *
+	 * @return region or null if item can't provide region
+	 */
+	private Region getLocalItemRegion(ContentItem contentItem) {
+		Region region = regionCache.getRegion(contentItem.getRegionId());
+		if (region != null) {
+			return region;
+		}
+
+		// Try load region from content item package
+		// TODO: this ContentType retrieving can be optimized
+		ContentType contentType = contentTypes.get(contentItem.getType());
+		String contentItemPackageFile = ((DirectoryContentItem) contentItem).getPath();
+		region = contentType.extractRegion(contentItem, contentItemPackageFile);
+		if (region != null) {
+			regionCache.putRegion(contentItem.getRegionId(), region);
+		}
+		return region;
+	}
+
+	@Override
+	public List<ContentItem> findContentItemsInBounds(double minLat, double minLon, double maxLat, double maxLon) {
+		List<ContentItem> matchingItems = new ArrayList<>();
+		Set<String> candidateRegions = regionCache.findCandidateRegions(minLat, minLon, maxLat, maxLon);
+
+		for (ContentItem contentItem : localCatalog.getItems()) {
+			if (regionCache.getRegionDesc(contentItem.getRegionId()) != null
+					&& !candidateRegions.contains(contentItem.getRegionId())) {
+				continue;
+			}
+
+			Region region = getLocalItemRegion(contentItem);
+			if (region != null && region.intersects(minLat, minLon, maxLat, maxLon)) {
+				matchingItems.add(contentItem);
 			}
 		}
 
@@ -174,7 +340,83 @@ public class ContentManagerImpl implements ContentManager {
 	}
 
 	@Override
-	public void unpackContentItem(ContentItem contentItem) {
+	public List<ContentItem> findSuggestedItemsInBounds(double minLat, double minLon, double maxLat, double maxLon) {
+		Set<String> regionIds = new HashSet<>();
+		for (RegionCache.RegionDesc regionDesc : regionCache.findRegions(minLat, minLon, maxLat, maxLon)) {
+			regionIds.add(regionDesc.regionId);
+		}
+
+		List<ContentItem> matchingItems = new ArrayList<>();
+		for (ContentItem remoteContentItem : remoteContentItems) {
+			if (regionIds.contains(remoteContentItem.getRegionId())) {
+				matchingItems.add(remoteContentItem);
+			}
+		}
+
+		return matchingItems;
+	}
+
+	@Override
+	public RoutePlan planRoute(List<Location> route, double corridorWidth) {
+		if (route.isEmpty()) {
+			return new RoutePlan(new ArrayList<ContentItem>(), new ArrayList<ContentItem>(),
+					new HashMap<String, List<double[]>>());
+		}
+
+		// One index query per route segment
+		Set<String> candidateRegions = new HashSet<>();
+		for (double[] bounds : RoutePlanner.getSegmentBounds(route, corridorWidth)) {
+			candidateRegions.addAll(regionCache.findCandidateRegions(bounds[0], bounds[1], bounds[2], bounds[3]));
+		}
+
+		RoutePlanner planner = new RoutePlanner(route, corridorWidth, contentTypes.keySet());
+
+		for (ContentItem localItem : localCatalog.getItems()) {
+			if (regionCache.getRegionDesc(localItem.getRegionId()) != null
+					&& !candidateRegions.contains(localItem.getRegionId())) {
+				continue;
+			}
+
+			Region region = getLocalItemRegion(localItem);
+			if (region != null) {
+				planner.addCandidate(localItem, region, true);
+			}
+		}
+
+		for (ContentItem remoteItem : remoteContentItems) {
+			if (!candidateRegions.contains(remoteItem.getRegionId())) {
+				continue;
+			}
+
+			Region region = regionCache.getRegion(remoteItem.getRegionId());
+			if (region != null) {
+				planner.addCandidate(remoteItem, region, false);
+			}
+		}
+
+		return planner.createPlan();
+	}
+
+	@Override
+	public boolean unpackContentItem(ContentItem contentItem) {
+		if (!extractContentItem(contentItem)) {
+			return false;
+		}
+
+		if (contentItem.getType().equals(GRAPHHOPPER_MAP)) {
+			File unpackedRootDir = new File(contentRootPath, "/content-manager/unpacked");
+			loadRegions6Cache(new UnpackedDir(unpackedRootDir, contentItem).getUnpackedDir());
+		}
+		return true;
+	}
+
+	/**
+	 * Extract content item package, without replacing regions of active item.
+	 * Concurrent calls for the same item extract it once.
+	 *
+	 * @return true if item extracted
+	 */
+	public boolean extractContentItem(ContentItem contentItem) {
 		ContentType contentType = contentTypes.get(contentItem.getType());
 		String contentItemPackageFile = ((DirectoryContentItem) contentItem).getPath();
 
@@ -182,21 +424,34 @@ public class ContentManagerImpl implements ContentManager {
 		unpackedRootDir.mkdirs();
 		UnpackedDir unpackedDir = new UnpackedDir(unpackedRootDir, contentItem);
 
-		if (!unpackedDir.isUnpacked()) {
+		synchronized (getUnpackLock(unpackedDir.getUnpackedDir().getPath())) {
+			if (unpackedDir.isUnpacked()) {
+				return true;
+			}
+
 			try {
 				contentType.unpackContentItem(contentItem, contentItemPackageFile,
 						unpackedDir.getUnpackedDir().toString());
 				unpackedDir.markUnpacked();
-
-				if (contentItem.getType().equals(GRAPHHOPPER_MAP)) {
-					loadRegions6Cache(unpackedDir.getUnpackedDir());
-				}
+				return true;
 			} catch (IOException e) {
-				// TODO: handle error
+				log.warn("Can't unpack content item {}", contentItem.getName(), e);
+				return false;
 			}
 		}
 	}
 
+	private Object getUnpackLock(String unpackedPath) {
+		synchronized (unpackLocks) {
+			Object lock = unpackLocks.get(unpackedPath);
+			if (lock == null) {
+				lock = new Object();
+				unpackLocks.put(unpackedPath, lock);
+			}
+			return lock;
+		}
+	}
+
 	@Override
 	public synchronized String activateContentItem(ContentItem contentItem) {
 		String contentItemPackageFile = ((DirectoryContentItem) contentItem).getPath();
@@ -216,21 +471,132 @@ public class ContentManagerImpl implements ContentManager {
 		}
 	}
 
+	/**
+	 * Open stream from best responding mirror. Compressed stream can't be continued,
+	 * so mirrors switched only before transfer started
+	 */
+	private InputStream openMirrorStream(NetworkContentItem remoteItem) throws IOException {
+		IOException lastException = null;
+		for (String url : mirrorSelector.rank(remoteItem.getUrls())) {
+			long startTime = System.currentTimeMillis();
+			try {
+				InputStream input = UrlUtil.getInputStream(url);
+				mirrorSelector.reportLatency(url, System.currentTimeMillis() - startTime);
+				return input;
+			} catch (IOException e) {
+				if (UrlUtil.isInterruption(e)) {
+					throw e;
+				}
+
+				log.warn("Mirror {} of {} unavailable", url, remoteItem.getName());
+				mirrorSelector.reportFailure(url);
+				lastException = e;
+			}
+		}
+
+		throw lastException;
+	}
+
+	/**
+	 * Update local version of item using patch from catalog
+	 *
+	 * @return new local item or null if there is no applicable patch or patching failed
+	 * and full download required
+	 */
+	private ContentItem patchContentItem(NetworkContentItem remoteItem,
+										 ProgressInputStream.ProgressListener progressListener) throws IOException {
+		for (ContentItem localItem : localCatalog.getItems()) {
+			if (!localItem.getName().equals(remoteItem.getName())) {
+				continue;
+			}
+
+			DirectoryContentItem localDirectoryItem = (DirectoryContentItem) localItem;
+			// Don't block download on hashing, item downloaded fully if hash not known yet
+			String localHash = localDirectoryItem.getCachedHash();
+			if (localHash == null) {
+				log.info("Hash of local item {} pending, patch skipped", localItem.getName());
+				continue;
+			}
+
+			NetworkContentItem.Patch patch = remoteItem.getPatch(localHash);
+			if (patch == null) {
+				continue;
+			}
+
+			InputStream conn = null;
+			try {
+				conn = UrlUtil.getInputStream(patch.getUrl());
+
+				InputStream inputStream = new ProgressInputStream(conn, patch.getSize(),
+						100000, progressListener);
+
+				if ("gzip".equals(patch.getCompression())) {
+					inputStream = new GZIPInputStream(inputStream);
+				}
+
+				ContentItem contentItem = mainLocalStorage.patchContentItem(remoteItem, localDirectoryItem,
+						inputStream);
+				localCatalog.replaceByName(mainLocalStorage, remoteItem.getName(), (DirectoryContentItem) contentItem);
+				log.info("Content item {} updated using patch", remoteItem.getName());
+				return contentItem;
+			} catch (IOException e) {
+				if (UrlUtil.isInterruption(e)) {
+					throw e;
+				}
+
+				log.warn("Can't apply patch to {}, downloading whole item", remoteItem.getName(), e);
+				return null;
+			} finally {
+				Utils.silentClose(conn);
+			}
+		}
+
+		return null;
+	}
+
 	@Override
 	public ContentItem downloadContentItem(final NetworkContentItem remoteItem) throws IOException {
+		ProgressInputStream.ProgressListener progressListener = new ProgressInputStream.ProgressListener() {
+			@Override
+			public void update(int current, int max) {
+				if (listener != null) {
+					listener.downloadStateUpdated(remoteItem, current, max);
+				}
+			}
+		};
+
+		ContentItem patchedItem = patchContentItem(remoteItem, progressListener);
+		if (patchedItem != null) {
+			return patchedItem;
+		}
+
+		if (ResumableDownload.isSupported(remoteItem)) {
+			File partialFile = mainLocalStorage.getPartialFile(remoteItem);
+
+			boolean downloaded = false;
+			if (SegmentedDownload.isSupported(remoteItem)) {
+				SegmentedDownload download = new SegmentedDownload(remoteItem, partialFile,
+						SegmentedDownload.DEFAULT_SEGMENTS, mirrorSelector);
+				downloaded = download.download(progressListener);
+			}
+
+			// Server ignores range requests, use single stream
+			if (!downloaded) {
+				ResumableDownload download = new ResumableDownload(remoteItem, partialFile, mirrorSelector);
+				download.download(progressListener);
+			}
+
+			ContentItem contentItem = mainLocalStorage.commitContentItem(remoteItem, partialFile);
+			localCatalog.replaceByName(mainLocalStorage, remoteItem.getName(), (DirectoryContentItem) contentItem);
+			return contentItem;
+		}
+
 		InputStream conn = null;
 		try {
-			conn = UrlUtil.getInputStream(remoteItem.getUrl());
+			conn = openMirrorStream(remoteItem);
 
 			InputStream inputStream = new ProgressInputStream(conn, remoteItem.getDownloadSize(),
-					100000, new ProgressInputStream.ProgressListener() {
-				@Override
-				public void update(int current, int max) {
-					if (listener != null) {
-						listener.downloadStateUpdated(remoteItem, current, max);
-					}
-				}
-			});
+					100000, progressListener);
 
 			// Setup gzip compression
 			if ("gzip".equals(remoteItem.getCompression())) {
@@ -246,7 +612,7 @@ public class ContentManagerImpl implements ContentManager {
 			}
 
 			ContentItem contentItem = mainLocalStorage.storeContentItem(remoteItem, inputStream);
-			refreshLocalItemsList();
+			localCatalog.replaceByName(mainLocalStorage, remoteItem.getName(), (DirectoryContentItem) contentItem);
 			return contentItem;
 		} finally {
 			Utils.silentClose(conn);
@@ -321,13 +687,16 @@ public class ContentManagerImpl implements ContentManager {
 	}
 
 	@Override
-	public void migrate(String newRootPath) {
+	public synchronized void migrate(String newRootPath) {
 		File fromDir = new File(contentRootPath);
 		File toDir = new File(newRootPath);
 
+		// Full rescan replaces incremental updates of observers
+		stopWatching();
 		try {
 			copyDirectory(fromDir, toDir);
 			mainLocalStorage.migrate(newRootPath + "/content-manager/storage");
+			refreshLocalItemsList();
 
 			// Update migration history
 			addMigrationHistoryItem(contentRootPath, newRootPath);
@@ -336,6 +705,8 @@ public class ContentManagerImpl implements ContentManager {
 		} catch (IOException e) {
 			log.error("Can't migrate data directory");
 			deleteDir(toDir, SAFEGUARD_STRING);
+		} finally {
+			startWatching();
 		}
 	}
 
@@ -343,7 +714,7 @@ public class ContentManagerImpl implements ContentManager {
 	public boolean deleteContentItem(ContentItem contentItem) {
 		try {
 			mainLocalStorage.markObsolete(contentItem);
-			refreshLocalItemsList();
+			localCatalog.replaceByName(mainLocalStorage, contentItem.getName(), null);
 		} catch (IOException e) {
 			return false;
 		}
@@ -355,9 +726,13 @@ public class ContentManagerImpl implements ContentManager {
 		List<ContentItem> matchingItems = new ArrayList<>();
 		List<ContentItem> remoteContentItems = this.remoteContentItems;
 
+		Set<String> regionIds = new HashSet<>();
+		for (RegionCache.RegionDesc regionDesc : regionCache.findRegions(location)) {
+			regionIds.add(regionDesc.regionId);
+		}
+
 		for (ContentItem remoteContentItem : remoteContentItems) {
-			Region region = regionCache.getRegion(remoteContentItem.getRegionId());
-			if (region != null && region.testHit(location.getLatitude(), location.getLongitude())) {
+			if (regionIds.contains(remoteContentItem.getRegionId())) {
 				matchingItems.add(remoteContentItem);
 			}
 		}
@@ -391,27 +766,28 @@ public class ContentManagerImpl implements ContentManager {
 				.apply();
 	}
 
+	/**
+	 * Full rescan of all storages. Used on startup and after migration,
+	 * other operations update local catalog incrementally.
+	 */
 	private void refreshLocalItemsList() {
 		try {
-			List<ContentItem> localItems = new ArrayList<ContentItem>();
-
 			mainLocalStorage.updateContentList();
-			localItems.addAll(mainLocalStorage.getContentList());
-
-			for (ContentStorage storage : localStorages) {
-				try {
-					storage.updateContentList();
-					localItems.addAll(storage.getContentList());
-				} catch (IOException e) {
-					log.warn("Can't load additional local storage");
-				}
-			}
-
-			localContentItems = localItems;
-
+			localCatalog.replaceStorage(mainLocalStorage, mainLocalStorage.getContentList());
 		} catch (IOException e) {
 			// TODO: error
 		}
+
+		for (DirectoryStorage storage : localStorages) {
+			try {
+				storage.updateContentList();
+				localCatalog.replaceStorage(storage, storage.getContentList());
+			} catch (IOException e) {
+				log.warn("Can't load additional local storage");
+			}
+		}
+
+		hashWarmer.warm(localCatalog.getItems());
 	}
 
 	private void loadRegions6Cache(File unpackedDir) {
@@ -480,6 +856,30 @@ public class ContentManagerImpl implements ContentManager {
 		}
 	}
 
+	private class StorageObserver extends FileObserver {
+		private final DirectoryStorage storage;
+
+		StorageObserver(DirectoryStorage storage) {
+			super(storage.getPath(), CLOSE_WRITE | MOVED_TO | MOVED_FROM | DELETE);
+			this.storage = storage;
+		}
+
+		@Override
+		public void onEvent(int event, String path) {
+			if (path == null || !(path.endsWith(".map") || path.endsWith(".ghz"))) {
+				return;
+			}
+
+			DirectoryContentItem item = storage.updateFile(path);
+			if (item != null) {
+				localCatalog.putItem(storage, item);
+				hashWarmer.warm(Collections.<ContentItem>singletonList(item));
+			} else {
+				localCatalog.removeFile(storage, path);
+			}
+		}
+	}
+
 	private boolean isParent(File parent, File child) {
 		if (child == null) {
 			return false;
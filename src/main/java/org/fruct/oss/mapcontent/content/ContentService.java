@@ -11,6 +11,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.DrawableRes;
 import android.support.annotation.NonNull;
@@ -22,37 +23,78 @@ import org.fruct.oss.mapcontent.content.connections.ContentServiceConnection;
 import org.fruct.oss.mapcontent.content.contenttype.ContentType;
 import org.fruct.oss.mapcontent.content.contenttype.GraphhopperContentType;
 import org.fruct.oss.mapcontent.content.contenttype.MapsforgeContentType;
+import org.fruct.oss.mapcontent.content.download.DownloadQueue;
 import org.fruct.oss.mapcontent.content.fragments.ContentFragment;
 import org.fruct.oss.mapcontent.content.utils.DirUtil;
+import org.fruct.oss.mapcontent.content.utils.MirrorSelector;
 import org.fruct.oss.mapcontent.content.utils.RegionCache;
+import org.fruct.oss.mapcontent.content.utils.TaskScheduler;
+import org.fruct.oss.mapcontent.content.utils.UrlUtil;
+import org.fruct.oss.mapcontent.content.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ContentService extends Service
 		implements SharedPreferences.OnSharedPreferenceChangeListener,
 		ContentManager.Listener {
+	private static final Logger log = LoggerFactory.getLogger(ContentService.class);
+
 	public static final String[] DEFAULT_ROOT_URLS = {"http://gets.cs.petrsu.ru/maps/root/root.xml"};
 
+	// Interactive lane runs region checks concurrently with catalog refresh,
+	// bulk lane serializes downloads, migration and garbage collection
+	private static final int INTERACTIVE_THREADS = 2;
+	private static final int BULK_THREADS = 1;
+
+	private static final String TASK_INITIALIZE = "initialize";
+	private static final String TASK_REFRESH = "refresh";
+	private static final String TASK_CHECK_REGION = "check-region";
+	private static final String TASK_SUGGEST = "suggest";
+	private static final String TASK_MIGRATE = "migrate";
+	private static final String TASK_GARBAGE_COLLECT = "garbage-collect";
+	private static final String TASK_PREFETCH = "prefetch";
+	private static final String TASK_HASHES_READY = "hashes-ready";
+	private static final String TASK_DOWNLOAD_PREFIX = "download:";
+	private static final String TASK_DOWNLOAD_ROUTE_PREFIX = "download-route:";
+
+	// Delay before retry of failed download, doubled after each failure
+	private static final long RETRY_DELAY = 30000;
+
+	private static final List<String> TRACKED_CONTENT_TYPES
+			= Arrays.asList(ContentManagerImpl.GRAPHHOPPER_MAP, ContentManagerImpl.MAPSFORGE_MAP);
+
 	private Binder binder = new Binder();
 
 	private KeyValue digestCache;
-	private ContentManager contentManager;
+	private volatile ContentManager contentManager;
+	private DownloadQueue downloadQueue;
 	private RegionCache regionCache;
+	private final MirrorSelector mirrorSelector = new MirrorSelector();
+	private RegionTracker regionTracker;
+	private final RegionPredictor regionPredictor = new RegionPredictor();
+
+	// Names of items already unpacked or queued ahead of time, cleared when regions invalidated
+	private final Set<String> prefetchedItems = Collections.synchronizedSet(new HashSet<String>());
+
+	// Regions ahead that already triggered predictive download, cleared when regions invalidated
+	private final Set<String> prefetchedRegions = Collections.synchronizedSet(new HashSet<String>());
 
 	private Handler handler;
-	private ExecutorService executor = Executors.newSingleThreadExecutor();
+	private final Object retryToken = new Object();
+	private TaskScheduler scheduler = new TaskScheduler(INTERACTIVE_THREADS, BULK_THREADS);
 	private SharedPreferences pref;
 
 	private String dataPath;
@@ -61,14 +103,27 @@ public class ContentService extends Service
 	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
 
 	private LocationManager locationManager;
-	private Location lastLocation;
+	private volatile Location lastLocation;
 	private LocationListener locationListener = new ContentServiceLocationListener();
 
 	private Future<?> initializationFuture;
-	private Future<?> refreshFuture;
 
-	private final List<Future<?>> downloadTasks = new ArrayList<>();
-	private boolean isSuggestItemRequested = false;
+	private volatile boolean isSuggestItemRequested = false;
+
+	// Content manager created after service destroyed must be closed by initialization task
+	private volatile boolean isDestroyed = false;
+
+	// Remote list fetched from network since start, otherwise it restored from saved catalog
+	private volatile boolean isRemoteListFetched = false;
+
+	// Items waiting in batch downloads of route plans
+	private final Set<String> routeItems = Collections.synchronizedSet(new HashSet<String>());
+	private final AtomicInteger routeCounter = new AtomicInteger();
+
+	// Item currently downloaded by batch job and thread of that job, guarded by routeLock
+	private final Object routeLock = new Object();
+	private String routeItemName;
+	private Thread routeThread;
 
 	private boolean disableRegions6;
 	private String[] rootUrls = DEFAULT_ROOT_URLS;
@@ -82,28 +137,58 @@ public class ContentService extends Service
 		pref = PreferenceManager.getDefaultSharedPreferences(this);
 		handler = new Handler(Looper.getMainLooper());
 
+		// Lane work requires content manager, so it waits until initialization completes
+		scheduler.hold();
+
 		dataPath = pref.getString(Settings.PREF_STORAGE_PATH, null);
 		digestCache = new KeyValue(this, "digestcache");
 		regionCache = new RegionCache(this, new File(getCacheDir(), "region-cache"));
+		regionTracker = new RegionTracker(regionCache);
 		if (dataPath == null) {
 			DirUtil.StorageDirDesc[] contentPaths = DirUtil.getPrivateStorageDirs(this);
 			dataPath = contentPaths[0].path;
 			pref.edit().putString(Settings.PREF_STORAGE_PATH, dataPath).apply();
 		}
 
+		// Queue available before initialization, so downloads can be requested any time
+		downloadQueue = new DownloadQueue(getDownloadQueueFile(dataPath));
+
 		pref.registerOnSharedPreferenceChangeListener(this);
 	}
 
 	@Override
 	public void onDestroy() {
 		locationManager.removeUpdates(locationListener);
+		handler.removeCallbacksAndMessages(retryToken);
+		isDestroyed = true;
 
 		pref.unregisterOnSharedPreferenceChangeListener(this);
-		executor.shutdown();
+		scheduler.shutdown(new Runnable() {
+			@Override
+			public void run() {
+				// Databases used by tasks, so closed only after running tasks finished
+				if (contentManager != null) {
+					((ContentManagerImpl) contentManager).close();
+				}
+				digestCache.close();
+			}
+		});
 
 		super.onDestroy();
 	}
 
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		regionCache.trimMemory(level);
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		regionCache.trimMemory(TRIM_MEMORY_COMPLETE);
+	}
+
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
 		return START_NOT_STICKY;
@@ -141,42 +226,76 @@ public class ContentService extends Service
 		this.disableRegions6 = !enableRegions6;
 		this.rootUrls = rootUrls;
 
-		initializationFuture = executor.submit(new Runnable() {
+		initializationFuture = scheduler.submitUnheld(TaskScheduler.Lane.INTERACTIVE, TASK_INITIALIZE,
+				TaskScheduler.PRIORITY_HIGH, new Runnable() {
 			@Override
 			public void run() {
-				HashMap<String, ContentType> contentTypes = new HashMap<>();
+				try {
+					performInitialize(requestedContentTypes);
+				} finally {
+					scheduler.release();
+				}
+			}
+		});
+	}
 
-				for (String requestedContentType : requestedContentTypes) {
-					switch (requestedContentType) {
-					case ContentManagerImpl.GRAPHHOPPER_MAP:
-						contentTypes.put(requestedContentType, new GraphhopperContentType());
-						break;
+	private void performInitialize(String[] requestedContentTypes) {
+		HashMap<String, ContentType> contentTypes = new HashMap<>();
 
-					case ContentManagerImpl.MAPSFORGE_MAP:
-						contentTypes.put(requestedContentType, new MapsforgeContentType(regionCache));
-						break;
-					}
-				}
+		for (String requestedContentType : requestedContentTypes) {
+			switch (requestedContentType) {
+			case ContentManagerImpl.GRAPHHOPPER_MAP:
+				contentTypes.put(requestedContentType, new GraphhopperContentType());
+				break;
+
+			case ContentManagerImpl.MAPSFORGE_MAP:
+				contentTypes.put(requestedContentType, new MapsforgeContentType(regionCache));
+				break;
+			}
+		}
 
-				contentManager = new ContentManagerImpl(ContentService.this,
-						dataPath,
-						digestCache,
-						regionCache,
-						contentTypes,
-						disableRegions6);
+		contentManager = new ContentManagerImpl(ContentService.this,
+				dataPath,
+				digestCache,
+				regionCache,
+				mirrorSelector,
+				contentTypes,
+				disableRegions6,
+				ContentService.this);
+
+		if (isDestroyed) {
+			// Manager closed when scheduler terminates
+			return;
+		}
+
+		locationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER,
+				60000, 1000, locationListener, Looper.getMainLooper());
+
+		for (DownloadQueue.Entry entry : downloadQueue.getEntries()) {
+			downloadItem(entry.item, entry.priority);
+		}
+
+		scheduler.submit(TaskScheduler.Lane.BULK, TASK_GARBAGE_COLLECT, TaskScheduler.PRIORITY_LOW,
+				new Runnable() {
+			@Override
+			public void run() {
 				try {
 					contentManager.garbageCollect();
 				} catch (Exception ex) {
 					ex.printStackTrace();
 				}
-
-				((ContentManagerImpl) contentManager).setListener(ContentService.this);
-				locationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER,
-						60000, 1000, locationListener, Looper.getMainLooper());
-
-				notifyInitialized();
 			}
 		});
+
+		// Saved catalog usable immediately, revalidate it in background
+		if (!contentManager.getRemoteContentItems().isEmpty()) {
+			notifyRemoteListReady(contentManager.getRemoteContentItems());
+			if (Utils.checkNetworkAvailability(ContentService.this)) {
+				submitRefresh(false);
+			}
+		}
+
+		notifyInitialized();
 	}
 
 	public boolean isInitializing() {
@@ -211,13 +330,45 @@ public class ContentService extends Service
 		itemListeners.remove(itemListener);
 	}
 
+	/**
+	 * Cancel all queued and running downloads
+	 * @deprecated use {@link #cancelDownload(ContentItem)} to cancel single download
+	 */
+	@Deprecated
 	public void interrupt() {
-		synchronized (downloadTasks) {
-			for (Future<?> task : downloadTasks) {
-				task.cancel(true);
+		for (DownloadQueue.Entry entry : downloadQueue.getEntries()) {
+			downloadQueue.remove(entry.item.getName());
+		}
+		synchronized (routeLock) {
+			routeItems.clear();
+		}
+		scheduler.cancelByPrefix(TASK_DOWNLOAD_PREFIX);
+		scheduler.cancelByPrefix(TASK_DOWNLOAD_ROUTE_PREFIX);
+	}
+
+	/**
+	 * Cancel queued or running download of content item
+	 * @param contentItem remote content item
+	 * @return true if download was found
+	 */
+	public boolean cancelDownload(ContentItem contentItem) {
+		downloadQueue.remove(contentItem.getName());
+
+		boolean isFound;
+		synchronized (routeLock) {
+			isFound = routeItems.remove(contentItem.getName());
+			if (contentItem.getName().equals(routeItemName)) {
+				// Interrupts only current item, batch continues with next one
+				routeThread.interrupt();
+				isFound = true;
 			}
-			downloadTasks.clear();
 		}
+
+		return scheduler.cancel(getDownloadTaskKey(contentItem)) || isFound;
+	}
+
+	public boolean isDownloading(ContentItem contentItem) {
+		return scheduler.isActive(getDownloadTaskKey(contentItem)) || routeItems.contains(contentItem.getName());
 	}
 
 	public boolean deleteContentItem(ContentItem contentItem) {
@@ -229,62 +380,197 @@ public class ContentService extends Service
 	 * @param contentItem remote content item to download
 	 */
 	public void downloadItem(final ContentItem contentItem) {
+		downloadItem(contentItem, TaskScheduler.PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Download content item, notifying about download state through listener
+	 *
+	 * Item stays in persistent download queue until download completes,
+	 * so download continues after service restart
+	 *
+	 * @param contentItem remote content item to download
+	 * @param priority download priority, see {@link TaskScheduler}
+	 */
+	public void downloadItem(final ContentItem contentItem, int priority) {
 		final NetworkContentItem remoteItem = (NetworkContentItem) contentItem;
+		downloadQueue.add(remoteItem, priority);
 
-		Future<?> downloadTask = executor.submit(new Runnable() {
+		scheduler.submit(TaskScheduler.Lane.BULK, getDownloadTaskKey(remoteItem), priority,
+				new Runnable() {
 			@Override
 			public void run() {
-				try {
-					startForeground(0, 1, R.drawable.ic_stat_file_file_download,
-							"Downloading " + remoteItem.getName());
-					ContentItem localContentItem = contentManager.downloadContentItem(remoteItem);
-					notifyDownloadFinished(contentItem, localContentItem);
-					notifyLocalListReady(getLocalContentItems());
-					if (lastLocation != null) {
-						checkRegion(lastLocation);
+				performDownload(remoteItem);
+			}
+		});
+	}
+
+	/**
+	 * Download all remote items of route plan in one background job
+	 *
+	 * Items stay in persistent download queue, so items not downloaded before service restart
+	 * downloaded separately after restart
+	 *
+	 * @param routePlan plan created by {@link #planRoute(List, double)}
+	 */
+	public void downloadRoute(RoutePlan routePlan) {
+		final List<NetworkContentItem> items = new ArrayList<>();
+		for (ContentItem contentItem : routePlan.getRemoteItems()) {
+			NetworkContentItem remoteItem = (NetworkContentItem) contentItem;
+			if (isDownloading(remoteItem)) {
+				continue;
+			}
+
+			items.add(remoteItem);
+			routeItems.add(remoteItem.getName());
+			downloadQueue.add(remoteItem, TaskScheduler.PRIORITY_NORMAL);
+		}
+
+		if (items.isEmpty()) {
+			return;
+		}
+
+		scheduler.submit(TaskScheduler.Lane.BULK, TASK_DOWNLOAD_ROUTE_PREFIX + routeCounter.incrementAndGet(),
+				TaskScheduler.PRIORITY_NORMAL, new Runnable() {
+			@Override
+			public void run() {
+				for (NetworkContentItem item : items) {
+					// Taking item and publishing it as current is atomic for cancelDownload
+					synchronized (routeLock) {
+						// Item cancelled while waiting
+						if (!routeItems.remove(item.getName())) {
+							continue;
+						}
+
+						routeItemName = item.getName();
+						routeThread = Thread.currentThread();
+					}
+
+					try {
+						performDownload(item);
+					} finally {
+						synchronized (routeLock) {
+							routeItemName = null;
+							routeThread = null;
+							// Clear interruption of single item
+							Thread.interrupted();
+						}
 					}
-				} catch (InterruptedIOException e) {
-					notifyDownloadInterrupted(contentItem);
-				} catch (IOException e) {
-					notifyErrorDownload(contentItem, e);
-				} catch (Exception ex) {
-					ex.printStackTrace();
-				} finally {
-					stopForeground(true);
 				}
 			}
 		});
+	}
 
-		synchronized (downloadTasks) {
-			downloadTasks.add(downloadTask);
-			for (Iterator<Future<?>> iterator = downloadTasks.iterator(); iterator.hasNext(); ) {
-				Future<?> task = iterator.next();
-				if (task.isDone()) {
-					iterator.remove();
-				}
+	/**
+	 * Find local items covering rectangle, for example map viewport
+	 */
+	public List<ContentItem> findContentItemsInBounds(double minLat, double minLon, double maxLat, double maxLon) {
+		return contentManager.findContentItemsInBounds(minLat, minLon, maxLat, maxLon);
+	}
+
+	/**
+	 * Find remote items covering rectangle, for example to show content missing in map viewport
+	 */
+	public List<ContentItem> findSuggestedItemsInBounds(double minLat, double minLon, double maxLat, double maxLon) {
+		return contentManager.findSuggestedItemsInBounds(minLat, minLon, maxLat, maxLon);
+	}
+
+	/**
+	 * Find local and remote content covering route. Can take long time, must not be called from main thread.
+	 *
+	 * @param route route points
+	 * @param corridorWidth corridor width in meters
+	 */
+	public RoutePlan planRoute(List<Location> route, double corridorWidth) {
+		return contentManager.planRoute(route, corridorWidth);
+	}
+
+	private void performDownload(NetworkContentItem remoteItem) {
+		try {
+			startForeground(0, 1, R.drawable.ic_stat_file_file_download,
+					"Downloading " + remoteItem.getName());
+			ContentItem localContentItem = contentManager.downloadContentItem(remoteItem);
+			downloadQueue.complete(remoteItem.getName());
+			notifyDownloadFinished(remoteItem, localContentItem);
+			if (lastLocation != null) {
+				requestRecommendedItem();
+			}
+		} catch (IOException e) {
+			if (UrlUtil.isInterruption(e)) {
+				downloadQueue.remove(remoteItem.getName());
+				notifyDownloadInterrupted(remoteItem);
+			} else {
+				// Timeouts included, so stalled link retried later
+				failDownload(remoteItem, e);
 			}
+		} catch (Exception ex) {
+			log.error("Unexpected error while downloading {}", remoteItem.getName(), ex);
+			failDownload(remoteItem, new IOException("Can't download " + remoteItem.getName(), ex));
+		} finally {
+			stopForeground(true);
 		}
 	}
 
+	private void failDownload(NetworkContentItem remoteItem, IOException e) {
+		if (downloadQueue.fail(remoteItem.getName())) {
+			scheduleRetry(remoteItem.getName());
+		}
+		notifyErrorDownload(remoteItem, e);
+	}
+
+	/**
+	 * Resubmit failed download after delay, unless item was removed from queue meanwhile
+	 */
+	private void scheduleRetry(final String name) {
+		DownloadQueue.Entry entry = downloadQueue.get(name);
+		if (entry == null) {
+			return;
+		}
+
+		long delay = RETRY_DELAY << (entry.failures - 1);
+		handler.postAtTime(new Runnable() {
+			@Override
+			public void run() {
+				DownloadQueue.Entry entry = downloadQueue.get(name);
+				if (entry != null && !isDownloading(entry.item)) {
+					downloadItem(entry.item, entry.priority);
+				}
+			}
+		}, retryToken, SystemClock.uptimeMillis() + delay);
+	}
+
+	private File getDownloadQueueFile(String rootPath) {
+		return new File(rootPath, "content-manager/download-queue.json");
+	}
+
+	private String getDownloadTaskKey(ContentItem contentItem) {
+		return TASK_DOWNLOAD_PREFIX + contentItem.getName();
+	}
+
 	/**
 	 * Request content list update
 	 * Listener will be used to notify about content list update
 	 * @param forceRefresh if set to false, refresh will be skipped if data already loaded
 	 */
 	public void refresh(boolean forceRefresh) {
-		if (refreshFuture != null && !refreshFuture.isDone()) {
-			return;
-		}
-
-		if (!forceRefresh && !contentManager.getRemoteContentItems().isEmpty()) {
-			return;
-		}
+		submitRefresh(forceRefresh);
+	}
 
-		refreshFuture = executor.submit(new Runnable() {
+	private void submitRefresh(final boolean forceRefresh) {
+		scheduler.submit(TaskScheduler.Lane.INTERACTIVE, TASK_REFRESH, TaskScheduler.PRIORITY_LOW, new Runnable() {
 			@Override
 			public void run() {
+				boolean hasRemoteItems = !contentManager.getRemoteContentItems().isEmpty();
+				if (!forceRefresh && hasRemoteItems && isRemoteListFetched) {
+					return;
+				}
+
+				// Failure of implicit refresh not reported while saved catalog available
+				boolean reportErrors = forceRefresh || !hasRemoteItems;
 				try {
 					contentManager.refreshRemoteContentList(rootUrls);
+					isRemoteListFetched = true;
+					invalidateRegions();
 					notifyRemoteListReady(contentManager.getRemoteContentItems());
 
 
@@ -292,7 +578,11 @@ public class ContentService extends Service
 						notifyUpdateReady();
 					}
 				} catch (Exception e) {
-					notifyErrorInitializing(e);
+					if (reportErrors) {
+						notifyErrorInitializing(e);
+					} else {
+						log.warn("Can't revalidate remote content list", e);
+					}
 				}
 			}
 		});
@@ -337,7 +627,9 @@ public class ContentService extends Service
 			return;
 		}
 
-		executor.execute(new Runnable() {
+		// Location may change while check running, check repeated with latest location then
+		scheduler.submitLatest(TaskScheduler.Lane.INTERACTIVE, TASK_CHECK_REGION, TaskScheduler.PRIORITY_HIGH,
+				new Runnable() {
 			@Override
 			public void run() {
 				checkRegion(lastLocation);
@@ -351,7 +643,8 @@ public class ContentService extends Service
 			return;
 		}
 
-		executor.execute(new Runnable() {
+		scheduler.submit(TaskScheduler.Lane.INTERACTIVE, TASK_SUGGEST, TaskScheduler.PRIORITY_NORMAL,
+				new Runnable() {
 			@Override
 			public void run() {
 				Set<String> ret = new HashSet<>(2);
@@ -387,34 +680,144 @@ public class ContentService extends Service
 
 	private void setLocation(@NonNull final Location location) {
 		lastLocation = location;
-		executor.execute(new Runnable() {
+		if (regionTracker.isCheckRequired(location)) {
+			requestRecommendedItem();
+		}
+
+		requestPrefetch(location);
+
+		if (isSuggestItemRequested) {
+			isSuggestItemRequested = false;
+			requestSuggestedRegion();
+		}
+	}
+
+	/**
+	 * Prepare content of regions device is about to enter, if it moves fast enough to reach any
+	 * region boundary soon
+	 */
+	private void requestPrefetch(Location location) {
+		double lookahead = regionPredictor.update(location);
+		if (lookahead <= 0 || contentManager == null) {
+			return;
+		}
+
+		final boolean isDownloadAllowed = pref.getBoolean(Settings.PREF_PREDICTIVE_DOWNLOAD, false);
+		boolean isBoundaryNear = regionTracker.isBoundaryWithin(location, lookahead);
+		if (!isBoundaryNear && !isDownloadAllowed) {
+			return;
+		}
+
+		final List<Location> path = regionPredictor.createPath(location);
+		if (!isBoundaryNear && !isNewRegionAhead(location, path)) {
+			return;
+		}
+
+		scheduler.submit(TaskScheduler.Lane.BULK, TASK_PREFETCH, TaskScheduler.PRIORITY_LOW,
+				new Runnable() {
 			@Override
 			public void run() {
-				checkRegion(location);
+				prefetch(path, isDownloadAllowed);
+			}
+		});
+	}
 
-				if (isSuggestItemRequested) {
-					requestSuggestedRegion();
-					isSuggestItemRequested = false;
+	/**
+	 * Horizon of region tracker built only from regions of local items, so regions without local
+	 * content detected by bounding boxes of region index along predicted path
+	 *
+	 * @return true if path enters bounding box of region that wasn't handled yet
+	 */
+	private boolean isNewRegionAhead(Location location, List<Location> path) {
+		double minLat = location.getLatitude(), maxLat = minLat;
+		double minLon = location.getLongitude(), maxLon = minLon;
+		for (Location point : path) {
+			minLat = Math.min(minLat, point.getLatitude());
+			maxLat = Math.max(maxLat, point.getLatitude());
+			minLon = Math.min(minLon, point.getLongitude());
+			maxLon = Math.max(maxLon, point.getLongitude());
+		}
+
+		Set<String> currentRegions = regionCache.findCandidateRegions(location.getLatitude(), location.getLongitude());
+		boolean isFound = false;
+		for (String regionId : regionCache.findCandidateRegions(minLat, minLon, maxLat, maxLon)) {
+			if (!currentRegions.contains(regionId) && prefetchedRegions.add(regionId)) {
+				isFound = true;
+			}
+		}
+		return isFound;
+	}
+
+	private void prefetch(List<Location> path, boolean isDownloadAllowed) {
+		for (Location location : path) {
+			Set<String> localTypes = new HashSet<>(2);
+			for (ContentItem contentItem : contentManager.findContentItemsByRegion(location)) {
+				String type = contentItem.getType();
+				if (!TRACKED_CONTENT_TYPES.contains(type) || !localTypes.add(type)) {
+					continue;
+				}
+
+				// Only extracted, regions of current item stay active. Failed item tried again later
+				if (contentItem != regionTracker.getCurrentItem(type)
+						&& prefetchedItems.add(contentItem.getName())
+						&& !((ContentManagerImpl) contentManager).extractContentItem(contentItem)) {
+					prefetchedItems.remove(contentItem.getName());
 				}
 			}
-		});
+
+			if (!isDownloadAllowed) {
+				continue;
+			}
+
+			for (ContentItem remoteItem : contentManager.findSuggestedItems(location)) {
+				String type = remoteItem.getType();
+				if (TRACKED_CONTENT_TYPES.contains(type) && !localTypes.contains(type)
+						&& prefetchedItems.add(remoteItem.getName()) && !isDownloading(remoteItem)) {
+					downloadItem(remoteItem, TaskScheduler.PRIORITY_LOW);
+				}
+			}
+		}
 	}
 
 	private void checkRegion(Location location) {
-		Set<String> contentTypes = new HashSet<>(2);
-		contentTypes.add(ContentManagerImpl.GRAPHHOPPER_MAP);
-		contentTypes.add(ContentManagerImpl.MAPSFORGE_MAP);
+		Set<String> contentTypes = new HashSet<>(TRACKED_CONTENT_TYPES);
+		List<ContentItem> localContentItems = contentManager.getLocalContentItems();
 		List<ContentItem> regionContentItems = contentManager.findContentItemsByRegion(location);
+		regionTracker.update(location, TRACKED_CONTENT_TYPES, localContentItems, regionContentItems);
+
+		Set<String> failedTypes = new HashSet<>(2);
 		for (ContentItem contentItem : regionContentItems) {
-			if (contentTypes.remove(contentItem.getType())) {
-				contentManager.unpackContentItem(contentItem);
+			if (!contentTypes.contains(contentItem.getType())) {
+				continue;
+			}
+
+			// Item that can't be unpacked replaced by next item of the same type
+			if (contentManager.unpackContentItem(contentItem)) {
+				contentTypes.remove(contentItem.getType());
 				notifyRecommendedRegionItemReady(contentItem);
+			} else {
+				failedTypes.add(contentItem.getType());
 			}
 		}
 
 		for (String contentType : contentTypes) {
 			notifyRecommendedRegionItemNotFound(contentType);
 		}
+
+		// No available item of some type could be unpacked, repeat check on next location fix
+		failedTypes.retainAll(contentTypes);
+		if (!failedTypes.isEmpty()) {
+			regionTracker.invalidate();
+		}
+	}
+
+	/**
+	 * Force region check on next location fix and allow prefetch of already prefetched items
+	 */
+	private void invalidateRegions() {
+		regionTracker.invalidate();
+		prefetchedItems.clear();
+		prefetchedRegions.clear();
 	}
 
 	private void notifyLocalListReady(final List<ContentItem> items) {
@@ -428,6 +831,20 @@ public class ContentService extends Service
 		});
 	}
 
+	private void notifyLocalListChanged(final List<ContentItem> added, final List<ContentItem> removed,
+										final List<ContentItem> changed) {
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				for (Listener listener : listeners) {
+					if (listener instanceof LocalListListener) {
+						((LocalListListener) listener).localListChanged(added, removed, changed);
+					}
+				}
+			}
+		});
+	}
+
 	private void notifyRemoteListReady(final List<ContentItem> items) {
 		handler.post(new Runnable() {
 			@Override
@@ -451,6 +868,19 @@ public class ContentService extends Service
 		});
 	}
 
+	private void notifyBatchStateUpdated(final long downloaded, final long max, final int queued) {
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				for (Listener listener : listeners) {
+					if (listener instanceof BatchListener) {
+						((BatchListener) listener).batchStateUpdated(downloaded, max, queued);
+					}
+				}
+			}
+		});
+	}
+
 	private void notifyDownloadFinished(final ContentItem localItem, final ContentItem remoteItem) {
 		handler.post(new Runnable() {
 			@Override
@@ -556,27 +986,53 @@ public class ContentService extends Service
 	public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
 		if (key.equals(Settings.PREF_STORAGE_PATH)) {
 			final String newPath = sharedPreferences.getString(key, null);
-			if (contentManager != null) {
-				executor.execute(new Runnable() {
-					@Override
-					public void run() {
-						try {
-							startForeground(1, 2, R.drawable.ic_stat_content_content_copy,
-									"Moving content to " + newPath);
-							contentManager.migrate(newPath);
-							notifyRequestContentReload();
-						} finally {
-							stopForeground(true);
-						}
+			scheduler.submit(TaskScheduler.Lane.BULK, TASK_MIGRATE, TaskScheduler.PRIORITY_HIGH, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						startForeground(1, 2, R.drawable.ic_stat_content_content_copy,
+								"Moving content to " + newPath);
+						contentManager.migrate(newPath);
+						invalidateRegions();
+						dataPath = newPath;
+						downloadQueue.migrate(getDownloadQueueFile(newPath));
+						notifyRequestContentReload();
+					} finally {
+						stopForeground(true);
 					}
-				});
-			}
+				}
+			});
 		}
 	}
 
 	@Override
 	public void downloadStateUpdated(ContentItem item, int downloaded, int max) {
 		notifyDownloadStateUpdated(item, downloaded, max);
+
+		downloadQueue.updateProgress(item.getName(), downloaded);
+		notifyBatchStateUpdated(downloadQueue.getBatchDownloaded(), downloadQueue.getBatchTotal(),
+				downloadQueue.size());
+	}
+
+	@Override
+	public void localListChanged(List<ContentItem> added, List<ContentItem> removed, List<ContentItem> changed) {
+		invalidateRegions();
+		notifyLocalListChanged(added, removed, changed);
+	}
+
+	@Override
+	public void localHashesReady() {
+		// Hashing can finish before content manager constructor returns
+		scheduler.submit(TaskScheduler.Lane.INTERACTIVE, TASK_HASHES_READY, TaskScheduler.PRIORITY_NORMAL,
+				new Runnable() {
+			@Override
+			public void run() {
+				notifyLocalListReady(getLocalContentItems());
+				if (contentManager.checkUpdates()) {
+					notifyUpdateReady();
+				}
+			}
+		});
 	}
 
 	public class Binder extends android.os.Binder {
@@ -623,6 +1079,32 @@ public class ContentService extends Service
 		void downloadInterrupted(ContentItem item);
 	}
 
+	/**
+	 * Optional extension of {@link Listener} that receives incremental updates of local content list
+	 */
+	public interface LocalListListener extends Listener {
+		/**
+		 * Incremental update of local content list
+		 * @param added new items
+		 * @param removed removed items
+		 * @param changed new versions of items which files were replaced
+		 */
+		void localListChanged(List<ContentItem> added, List<ContentItem> removed, List<ContentItem> changed);
+	}
+
+	/**
+	 * Optional extension of {@link Listener} that receives aggregated download progress
+	 */
+	public interface BatchListener extends Listener {
+		/**
+		 * Aggregated progress of all queued downloads
+		 * @param downloaded bytes downloaded in current batch
+		 * @param max total bytes of current batch
+		 * @param queued count of items that not yet downloaded
+		 */
+		void batchStateUpdated(long downloaded, long max, int queued);
+	}
+
 	public interface ItemListener {
 		void recommendedRegionItemReady(ContentItem contentItem);
 		void recommendedRegionItemNotFound(String contentType);
@@ -1,15 +1,19 @@
 package org.fruct.oss.mapcontent.content;
 
 import org.fruct.oss.mapcontent.content.utils.StrUtil;
+import org.fruct.oss.mapcontent.content.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 
 public class DirectoryContentItem implements ContentItem {
 	private static final Logger log = LoggerFactory.getLogger(DirectoryStorage.class);
 
+	private static final int HASH_BUFFER_SIZE = 256 * 1024;
+
 	private final KeyValue digestCache;
 	private final DirectoryStorage storage;
 
@@ -18,7 +22,7 @@ public class DirectoryContentItem implements ContentItem {
 	private String description;
 	private String regionId;
 
-	private String hash;
+	private volatile String hash;
 
 	private String fileName;
 
@@ -56,29 +60,75 @@ public class DirectoryContentItem implements ContentItem {
 		return storage.getStorageName();
 	}
 
+	/**
+	 * Returns digest if it already known without reading file
+	 * @return hash or null if digest pending
+	 */
+	public String getCachedHash() {
+		if (hash != null) {
+			return hash;
+		}
+
+		String cachedHash = digestCache.get(getFileKey(new File(getPath())));
+		if (cachedHash != null) {
+			hash = cachedHash;
+		}
+		return cachedHash;
+	}
+
+	public boolean isHashPending() {
+		return getCachedHash() == null;
+	}
+
+	/**
+	 * Returns digest of file, computing it if not cached. Can block for long time on big files.
+	 */
 	@Override
-	public String getHash() {
+	public synchronized String getHash() {
 		if (hash != null) {
 			return hash;
 		}
 
-		hash = digestCache.get(name);
+		File file = new File(getPath());
+		hash = digestCache.get(getFileKey(file));
 
 		if (hash == null) {
 			log.trace("Sha1 of {}", getPath());
 
+			FileInputStream input = null;
 			try {
-				FileInputStream input = new FileInputStream(getPath());
-				hash = StrUtil.hashStream(input, "sha1");
-				digestCache.put(name, hash);
+				input = new FileInputStream(file);
+				hash = StrUtil.hashStream(input, "sha1", HASH_BUFFER_SIZE);
+				putDigest(digestCache, file, hash);
 			} catch (IOException e) {
 				throw new RuntimeException("Can't get hash of file " + name);
+			} finally {
+				Utils.silentClose(input);
 			}
 		}
 
 		return hash;
 	}
 
+	/**
+	 * Cache key that identifies file content: any modification of the file changes size or mtime,
+	 * so stale cached data never returned
+	 */
+	static String getFileKey(File file) {
+		return getFileKeyPrefix(file) + file.length() + "|" + file.lastModified();
+	}
+
+	static String getFileKeyPrefix(File file) {
+		return file.getPath() + "|";
+	}
+
+	/**
+	 * Store file digest, replacing digests of previous versions of the same file
+	 */
+	static void putDigest(KeyValue digestCache, File file, String hash) {
+		digestCache.replaceByPrefix(getFileKeyPrefix(file), getFileKey(file), hash);
+	}
+
 	@Override
 	public String getRegionId() {
 		return regionId;
@@ -98,6 +148,10 @@ public class DirectoryContentItem implements ContentItem {
 		return storage.getPath() + "/" + fileName;
 	}
 
+	public String getStoragePath() {
+		return storage.getPath();
+	}
+
 	public void setHash(String hash) {
 		this.hash = hash;
 	}
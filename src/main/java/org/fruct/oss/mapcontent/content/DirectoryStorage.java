@@ -1,5 +1,8 @@
 package org.fruct.oss.mapcontent.content;
 
+import org.fruct.oss.mapcontent.content.utils.Utils;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -11,6 +14,7 @@ import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.zip.ZipEntry;
@@ -21,10 +25,21 @@ public class DirectoryStorage implements ContentStorage {
 
 	protected String path;
 	protected KeyValue digestCache;
+	protected KeyValue metadataIndex;
 	protected List<ContentItem> items;
 
 	public DirectoryStorage(KeyValue digestCache, String path) {
+		this(digestCache, null, path);
+	}
+
+	/**
+	 * @param digestCache cache of file digests
+	 * @param metadataIndex cache of parsed file metadata, allows to skip parsing of unchanged files
+	 * @param path storage directory
+	 */
+	public DirectoryStorage(KeyValue digestCache, KeyValue metadataIndex, String path) {
 		this.digestCache = digestCache;
+		this.metadataIndex = metadataIndex;
 		if (path == null)
 			throw new IllegalArgumentException("Path must not be null");
 
@@ -32,7 +47,7 @@ public class DirectoryStorage implements ContentStorage {
 	}
 
 	@Override
-	public void updateContentList() throws IOException {
+	public synchronized void updateContentList() throws IOException {
 		File dir = new File(path);
 		if (!dir.exists() || !dir.isDirectory())
 			throw new FileNotFoundException("Wrong directory " + path);
@@ -55,31 +70,125 @@ public class DirectoryStorage implements ContentStorage {
 		}
 	}
 
-	private ContentItem createContentItem(File file) throws IOException {
+	/**
+	 * Reload single file after it was added, modified or deleted
+	 *
+	 * @param fileName name of file in storage directory
+	 * @return content item or null if file doesn't exist or unsupported
+	 */
+	public synchronized DirectoryContentItem updateFile(String fileName) {
+		if (items != null) {
+			for (Iterator<ContentItem> iterator = items.iterator(); iterator.hasNext(); ) {
+				if (((DirectoryContentItem) iterator.next()).getFileName().equals(fileName)) {
+					iterator.remove();
+				}
+			}
+		}
+
+		File file = new File(path, fileName);
+		if (!file.isFile()) {
+			return null;
+		}
+
 		DirectoryContentItem item = null;
+		try {
+			item = createContentItem(file);
+		} catch (IOException ignored) {
+		}
+
+		if (item != null && items != null) {
+			items.add(item);
+		}
 
+		return item;
+	}
+
+	private DirectoryContentItem createContentItem(File file) throws IOException {
 		File obsoleteFile = new File(file.getPath() + ".obsolete");
 		if (obsoleteFile.exists()) {
 			return null;
 		}
 
+		String type;
 		if (file.getName().endsWith(".map")) {
-			item = createBaseContentItem(file);
-			item.setType("mapsforge-map");
-			fillMapMetadata(file, item);
+			type = "mapsforge-map";
 		} else if (file.getName().endsWith(".ghz")) {
-			item = createBaseContentItem(file);
-			item.setType("graphhopper-map");
-			fillGhzMetadata(file, item);
+			type = "graphhopper-map";
+		} else {
+			return null;
+		}
+
+		Metadata metadata;
+		IndexEntry indexEntry = readIndexEntry(file);
+		if (indexEntry != null) {
+			if (!indexEntry.valid) {
+				return null;
+			}
+			metadata = indexEntry.metadata;
+		} else {
+			try {
+				metadata = type.equals("mapsforge-map") ? readMapMetadata(file) : readGhzMetadata(file);
+			} catch (IOException e) {
+				writeIndexEntry(file, false, null);
+				throw e;
+			}
+			writeIndexEntry(file, true, metadata);
 		}
 
-		if (item != null) {
-			item.setFileName(file.getName());
+		DirectoryContentItem item = createBaseContentItem(file);
+		item.setType(type);
+		if (metadata != null) {
+			fillFromMetadata(metadata, item);
 		}
+		item.setFileName(file.getName());
 
 		return item;
 	}
 
+	private IndexEntry readIndexEntry(File file) {
+		if (metadataIndex == null) {
+			return null;
+		}
+
+		String value = metadataIndex.get(DirectoryContentItem.getFileKey(file));
+		if (value == null) {
+			return null;
+		}
+
+		try {
+			JSONObject json = new JSONObject(value);
+			IndexEntry entry = new IndexEntry();
+			entry.valid = json.getBoolean("valid");
+			JSONObject metadataJson = json.optJSONObject("metadata");
+			if (metadataJson != null) {
+				entry.metadata = Metadata.fromJson(metadataJson);
+			}
+			return entry;
+		} catch (JSONException e) {
+			log.warn("Invalid metadata index entry for file {}", file);
+			return null;
+		}
+	}
+
+	private void writeIndexEntry(File file, boolean valid, Metadata metadata) {
+		if (metadataIndex == null) {
+			return;
+		}
+
+		try {
+			JSONObject json = new JSONObject();
+			json.put("valid", valid);
+			if (metadata != null) {
+				json.put("metadata", metadata.toJson());
+			}
+
+			metadataIndex.replaceByPrefix(DirectoryContentItem.getFileKeyPrefix(file),
+					DirectoryContentItem.getFileKey(file), json.toString());
+		} catch (JSONException e) {
+			log.warn("Can't serialize metadata of file {}", file);
+		}
+	}
+
 	private DirectoryContentItem createBaseContentItem(File file) throws FileNotFoundException {
 		return new DirectoryContentItem(this, digestCache, file.getName());
 	}
@@ -99,24 +208,28 @@ public class DirectoryStorage implements ContentStorage {
 		}
 	}
 
-	private void fillGhzMetadata(File file, DirectoryContentItem item) throws IOException {
+	private Metadata readGhzMetadata(File file) throws IOException {
 		ZipFile zipFile = new ZipFile(file, ZipFile.OPEN_READ);
-		ZipEntry entry = zipFile.getEntry("description.txt");
-		if (entry != null) {
+		try {
+			ZipEntry entry = zipFile.getEntry("description.txt");
+			if (entry == null) {
+				return null;
+			}
+
 			InputStream input = zipFile.getInputStream(entry);
 			try {
-				Metadata metadata = Metadata.parse(new InputStreamReader(input));
-				fillFromMetadata(metadata, item);
+				return Metadata.parse(new InputStreamReader(input));
 			} catch (Exception ex) {
 				throw new IOException("Incorrect xml file");
 			} finally {
 				input.close();
 			}
+		} finally {
+			Utils.silentClose(zipFile);
 		}
-		zipFile.close();
 	}
 
-	private void fillMapMetadata(File file, DirectoryContentItem item) throws IOException {
+	private Metadata readMapMetadata(File file) throws IOException {
 		RandomAccessFile raf = null;
 		try {
 			raf = new RandomAccessFile(file, "r");
@@ -131,7 +244,7 @@ public class DirectoryStorage implements ContentStorage {
 
 			if ((b & (1 << 3)) == 0) {
 				// TODO: no comment
-				return;
+				return null;
 			}
 
 			if ((b & (1 << 6)) != 0) {
@@ -158,8 +271,7 @@ public class DirectoryStorage implements ContentStorage {
 			String comment = new String(commentBytes, "UTF-8");
 
 			try {
-				Metadata metadata = Metadata.parse(new StringReader(comment));
-				fillFromMetadata(metadata, item);
+				return Metadata.parse(new StringReader(comment));
 			} catch (Exception e) {
 				throw new IOException("Incorrect xml file");
 			}
@@ -184,8 +296,8 @@ public class DirectoryStorage implements ContentStorage {
 	}
 
 	@Override
-	public List<ContentItem> getContentList() {
-		return items;
+	public synchronized List<ContentItem> getContentList() {
+		return items == null ? null : new ArrayList<>(items);
 	}
 
 	public String getPath() {
@@ -196,4 +308,9 @@ public class DirectoryStorage implements ContentStorage {
 		return "directory-storage";
 	}
 
+	private static class IndexEntry {
+		boolean valid;
+		Metadata metadata;
+	}
+
 }
@@ -0,0 +1,127 @@
+package org.fruct.oss.mapcontent.content;
+
+import android.support.annotation.NonNull;
+
+import org.fruct.oss.mapcontent.content.utils.DirUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Computes digests of local content items in background, so callers never stall on hashing.
+ *
+ * Each mounted device gets single hashing thread: files on one device hashed sequentially,
+ * files on different devices hashed in parallel.
+ */
+public class HashWarmer {
+	private static final Logger log = LoggerFactory.getLogger(HashWarmer.class);
+
+	// Executors by mount point
+	private final Map<String, ExecutorService> executors = new HashMap<>();
+	private final Map<String, String> mountPoints = new HashMap<>();
+	private final Set<String> pendingPaths = new HashSet<>();
+
+	private volatile Listener listener;
+	private boolean isShutdown;
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Schedule hashing of all items which digest not yet known
+	 * @param items local content items
+	 */
+	public synchronized void warm(List<ContentItem> items) {
+		if (isShutdown) {
+			return;
+		}
+
+		for (ContentItem item : items) {
+			if (!(item instanceof DirectoryContentItem)) {
+				continue;
+			}
+
+			final DirectoryContentItem directoryItem = (DirectoryContentItem) item;
+			if (!directoryItem.isHashPending() || !pendingPaths.add(directoryItem.getPath())) {
+				continue;
+			}
+
+			getExecutor(directoryItem.getStoragePath()).execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						directoryItem.getHash();
+					} catch (RuntimeException ex) {
+						log.warn("Can't hash {}", directoryItem.getPath());
+					}
+
+					hashed(directoryItem.getPath());
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stop hashing, items that not yet hashed will be hashed on demand
+	 */
+	public synchronized void shutdown() {
+		isShutdown = true;
+		for (ExecutorService executor : executors.values()) {
+			executor.shutdownNow();
+		}
+		executors.clear();
+		pendingPaths.clear();
+	}
+
+	private void hashed(String path) {
+		boolean allHashed;
+		synchronized (this) {
+			pendingPaths.remove(path);
+			allHashed = pendingPaths.isEmpty();
+		}
+
+		Listener listener = this.listener;
+		if (allHashed && listener != null) {
+			listener.hashesReady();
+		}
+	}
+
+	private ExecutorService getExecutor(String storagePath) {
+		String mountPoint = mountPoints.get(storagePath);
+		if (mountPoint == null) {
+			mountPoint = DirUtil.getMountPoint(storagePath);
+			mountPoints.put(storagePath, mountPoint);
+		}
+
+		ExecutorService executor = executors.get(mountPoint);
+		if (executor == null) {
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(@NonNull Runnable r) {
+					Thread thread = new Thread(r, "content-hash-warmer");
+					thread.setPriority(Thread.MIN_PRIORITY);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executors.put(mountPoint, executor);
+		}
+		return executor;
+	}
+
+	public interface Listener {
+		/**
+		 * Called from background thread when all scheduled items hashed
+		 */
+		void hashesReady();
+	}
+}
@@ -48,6 +48,31 @@ public class KeyValue implements Closeable {
 		db.delete(name, "key=?", new String[] { key });
 	}
 
+	/**
+	 * Delete all values which keys start with prefix
+	 * @param prefix key prefix
+	 */
+	public void deleteByPrefix(String prefix) {
+		db.delete(name, "substr(key, 1, " + prefix.length() + ")=?", new String[] { prefix });
+	}
+
+	/**
+	 * Atomically delete all values which keys start with prefix and put new value
+	 * @param prefix key prefix
+	 * @param key key, usually starts with prefix
+	 * @param value value
+	 */
+	public void replaceByPrefix(String prefix, String key, String value) {
+		db.beginTransaction();
+		try {
+			deleteByPrefix(prefix);
+			put(key, value);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
 	public String get(String key) {
 		return get(key, null);
 	}
@@ -0,0 +1,195 @@
+package org.fruct.oss.mapcontent.content;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory model of local content items of all directory storages.
+ *
+ * Model updated by deltas: single file added, replaced or removed. Each update produces {@link Change}
+ * that delivered to listener instead of whole new list.
+ */
+public class LocalCatalog {
+	private final Map<DirectoryStorage, Map<String, Entry>> storages = new LinkedHashMap<>();
+	private volatile List<ContentItem> snapshot = Collections.emptyList();
+
+	private volatile Listener listener;
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return immutable list of all local items
+	 */
+	public List<ContentItem> getItems() {
+		return snapshot;
+	}
+
+	/**
+	 * Replace all items of storage with result of full storage scan
+	 */
+	public void replaceStorage(DirectoryStorage storage, List<ContentItem> items) {
+		Change change = new Change();
+
+		synchronized (this) {
+			Map<String, Entry> oldEntries = storages.get(storage);
+			if (oldEntries == null) {
+				oldEntries = Collections.emptyMap();
+			}
+
+			Map<String, Entry> newEntries = new LinkedHashMap<>();
+			for (ContentItem item : items) {
+				Entry entry = new Entry((DirectoryContentItem) item);
+				newEntries.put(entry.item.getFileName(), entry);
+
+				Entry oldEntry = oldEntries.get(entry.item.getFileName());
+				if (oldEntry == null) {
+					change.added.add(entry.item);
+				} else if (!oldEntry.fileKey.equals(entry.fileKey)) {
+					change.changed.add(entry.item);
+				}
+			}
+
+			for (Entry oldEntry : oldEntries.values()) {
+				if (!newEntries.containsKey(oldEntry.item.getFileName())) {
+					change.removed.add(oldEntry.item);
+				}
+			}
+
+			storages.put(storage, newEntries);
+			updateSnapshot();
+		}
+
+		notifyChange(change);
+	}
+
+	/**
+	 * Add or replace single item of storage
+	 */
+	public void putItem(DirectoryStorage storage, DirectoryContentItem item) {
+		Change change = new Change();
+
+		synchronized (this) {
+			Entry entry = new Entry(item);
+			Entry oldEntry = getStorageEntries(storage).put(item.getFileName(), entry);
+
+			if (oldEntry == null) {
+				change.added.add(item);
+			} else {
+				change.changed.add(item);
+			}
+
+			updateSnapshot();
+		}
+
+		notifyChange(change);
+	}
+
+	/**
+	 * Remove item stored in file
+	 */
+	public void removeFile(DirectoryStorage storage, String fileName) {
+		Change change = new Change();
+
+		synchronized (this) {
+			Entry oldEntry = getStorageEntries(storage).remove(fileName);
+			if (oldEntry != null) {
+				change.removed.add(oldEntry.item);
+				updateSnapshot();
+			}
+		}
+
+		notifyChange(change);
+	}
+
+	/**
+	 * Replace all items of storage with given name by new item
+	 *
+	 * @param storage storage
+	 * @param name content item name
+	 * @param newItem new item or null to only remove old items
+	 */
+	public void replaceByName(DirectoryStorage storage, String name, DirectoryContentItem newItem) {
+		Change change = new Change();
+
+		synchronized (this) {
+			Map<String, Entry> entries = getStorageEntries(storage);
+			for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+				Entry entry = iterator.next();
+				if (entry.item.getName().equals(name)) {
+					iterator.remove();
+					change.removed.add(entry.item);
+				}
+			}
+
+			if (newItem != null) {
+				entries.put(newItem.getFileName(), new Entry(newItem));
+				change.added.add(newItem);
+			}
+
+			updateSnapshot();
+		}
+
+		notifyChange(change);
+	}
+
+	private Map<String, Entry> getStorageEntries(DirectoryStorage storage) {
+		Map<String, Entry> entries = storages.get(storage);
+		if (entries == null) {
+			entries = new LinkedHashMap<>();
+			storages.put(storage, entries);
+		}
+		return entries;
+	}
+
+	private void updateSnapshot() {
+		List<ContentItem> items = new ArrayList<>();
+		for (Map<String, Entry> entries : storages.values()) {
+			for (Entry entry : entries.values()) {
+				items.add(entry.item);
+			}
+		}
+		snapshot = Collections.unmodifiableList(items);
+	}
+
+	private void notifyChange(Change change) {
+		Listener listener = this.listener;
+		if (listener != null && !change.isEmpty()) {
+			listener.localCatalogChanged(change);
+		}
+	}
+
+	private static class Entry {
+		final DirectoryContentItem item;
+		final String fileKey;
+
+		Entry(DirectoryContentItem item) {
+			this.item = item;
+			this.fileKey = DirectoryContentItem.getFileKey(new File(item.getPath()));
+		}
+	}
+
+	public static class Change {
+		public final List<ContentItem> added = new ArrayList<>();
+		public final List<ContentItem> removed = new ArrayList<>();
+
+		/**
+		 * New versions of items which file was replaced
+		 */
+		public final List<ContentItem> changed = new ArrayList<>();
+
+		public boolean isEmpty() {
+			return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+		}
+	}
+
+	public interface Listener {
+		void localCatalogChanged(Change change);
+	}
+}
@@ -3,12 +3,15 @@ package org.fruct.oss.mapcontent.content;
 import android.util.Xml;
 
 import org.fruct.oss.mapcontent.content.utils.XmlUtil;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.io.Reader;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 public class Metadata {
@@ -30,6 +33,29 @@ public class Metadata {
 		return description;
 	}
 
+	public JSONObject toJson() throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("region-id", regionId);
+		json.put("name", name);
+		json.put("description", new JSONObject(description));
+		return json;
+	}
+
+	public static Metadata fromJson(JSONObject json) throws JSONException {
+		Metadata metadata = new Metadata();
+		metadata.regionId = json.getString("region-id");
+		metadata.name = json.getString("name");
+		metadata.description = new HashMap<String, String>();
+
+		JSONObject descriptionJson = json.getJSONObject("description");
+		for (Iterator<String> iterator = descriptionJson.keys(); iterator.hasNext(); ) {
+			String lang = iterator.next();
+			metadata.description.put(lang, descriptionJson.getString(lang));
+		}
+
+		return metadata;
+	}
+
 	public static Metadata parse(Reader reader) {
 		try {
 			XmlPullParser parser = Xml.newPullParser();
@@ -2,12 +2,16 @@ package org.fruct.oss.mapcontent.content;
 
 import android.util.Xml;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.fruct.oss.mapcontent.content.utils.XmlUtil.readText;
@@ -19,6 +23,10 @@ public class NetworkContent {
 	private NetworkContentItem[] items;
 	private String[] cacheUrls;
 
+	// Validators of fetched document, etag may be null and lastModified may be 0
+	private String etag;
+	private long lastModified;
+
 	public NetworkContent(List<String> includeList,
 						  List<NetworkContentItem> networkContentItemList,
 						  List<String> cacheUrls) {
@@ -39,6 +47,63 @@ public class NetworkContent {
 		return cacheUrls;
 	}
 
+	public String getEtag() {
+		return etag;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	void setValidators(String etag, long lastModified) {
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Serialize document to restore catalog without network
+	 * @return json object
+	 */
+	public JSONObject toJson() throws JSONException {
+		JSONObject json = new JSONObject();
+
+		JSONArray itemsJson = new JSONArray();
+		for (NetworkContentItem item : items) {
+			itemsJson.put(item.toJson());
+		}
+		json.put("items", itemsJson);
+		json.put("includes", new JSONArray(Arrays.asList(includes)));
+		json.put("cache-urls", new JSONArray(Arrays.asList(cacheUrls)));
+
+		if (etag != null) {
+			json.put("etag", etag);
+		}
+		json.put("last-modified", lastModified);
+		return json;
+	}
+
+	public static NetworkContent fromJson(JSONObject json) throws JSONException {
+		List<NetworkContentItem> items = new ArrayList<>();
+		JSONArray itemsJson = json.getJSONArray("items");
+		for (int i = 0; i < itemsJson.length(); i++) {
+			items.add(NetworkContentItem.fromJson(itemsJson.getJSONObject(i)));
+		}
+
+		NetworkContent content = new NetworkContent(readStrings(json.getJSONArray("includes")), items,
+				readStrings(json.getJSONArray("cache-urls")));
+		content.etag = json.optString("etag", null);
+		content.lastModified = json.optLong("last-modified");
+		return content;
+	}
+
+	private static List<String> readStrings(JSONArray json) throws JSONException {
+		List<String> strings = new ArrayList<>(json.length());
+		for (int i = 0; i < json.length(); i++) {
+			strings.add(json.getString(i));
+		}
+		return strings;
+	}
+
 	public static NetworkContent parse(InputStreamReader reader) {
 		try {
 			XmlPullParser parser = Xml.newPullParser();
@@ -1,15 +1,25 @@
 package org.fruct.oss.mapcontent.content;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import static org.fruct.oss.mapcontent.content.utils.XmlUtil.readNumber;
 import static org.fruct.oss.mapcontent.content.utils.XmlUtil.readText;
 import static org.fruct.oss.mapcontent.content.utils.XmlUtil.skip;
 
 public class NetworkContentItem implements ContentItem {
+	private static final Logger log = LoggerFactory.getLogger(NetworkContentItem.class);
+
 	private String name;
 
 	private String type;
@@ -18,6 +28,12 @@ public class NetworkContentItem implements ContentItem {
 
 	private Url url;
 
+	// Alternative urls of the same file
+	private List<String> mirrorUrls = new ArrayList<>();
+
+	// Deltas from previous versions to this version
+	private List<Patch> patches = new ArrayList<>();
+
 	private String hash;
 
 	private String description;
@@ -34,10 +50,33 @@ public class NetworkContentItem implements ContentItem {
 		return url.url;
 	}
 
+	/**
+	 * @return main url followed by mirror urls
+	 */
+	public List<String> getUrls() {
+		List<String> urls = new ArrayList<>(mirrorUrls.size() + 1);
+		urls.add(url.url);
+		urls.addAll(mirrorUrls);
+		return Collections.unmodifiableList(urls);
+	}
+
 	public String getHash() {
 		return hash;
 	}
 
+	/**
+	 * @param fromHash hash of local version of item
+	 * @return patch that converts local version to this version or null if not available
+	 */
+	public Patch getPatch(String fromHash) {
+		for (Patch patch : patches) {
+			if (patch.fromHash.equals(fromHash)) {
+				return patch;
+			}
+		}
+		return null;
+	}
+
 	public String getDescription() {
 		return description;
 	}
@@ -85,6 +124,87 @@ public class NetworkContentItem implements ContentItem {
 		this.storage = storage;
 	}
 
+	/**
+	 * Serialize item to restore it without network catalog
+	 * @return json object
+	 */
+	public JSONObject toJson() throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("name", name);
+		json.put("type", type);
+		json.put("size", size);
+		json.put("hash", hash);
+		json.put("description", description);
+		json.put("region-id", regionId);
+
+		JSONObject urlJson = new JSONObject();
+		urlJson.put("url", url.url);
+		urlJson.put("size", url.size);
+		if (url.compression != null) {
+			urlJson.put("compression", url.compression);
+		}
+		json.put("url", urlJson);
+
+		if (!mirrorUrls.isEmpty()) {
+			json.put("mirrors", new JSONArray(mirrorUrls));
+		}
+
+		if (!patches.isEmpty()) {
+			JSONArray patchesJson = new JSONArray();
+			for (Patch patch : patches) {
+				JSONObject patchJson = new JSONObject();
+				patchJson.put("from", patch.fromHash);
+				patchJson.put("url", patch.url);
+				patchJson.put("size", patch.size);
+				if (patch.compression != null) {
+					patchJson.put("compression", patch.compression);
+				}
+				patchesJson.put(patchJson);
+			}
+			json.put("patches", patchesJson);
+		}
+
+		return json;
+	}
+
+	public static NetworkContentItem fromJson(JSONObject json) throws JSONException {
+		NetworkContentItem item = new NetworkContentItem();
+		item.name = json.getString("name");
+		item.type = json.getString("type");
+		item.size = json.getInt("size");
+		item.hash = json.getString("hash");
+		item.description = json.optString("description", null);
+		item.regionId = json.optString("region-id", null);
+
+		JSONObject urlJson = json.getJSONObject("url");
+		item.url = new Url();
+		item.url.url = urlJson.getString("url");
+		item.url.size = urlJson.optInt("size", -1);
+		item.url.compression = urlJson.optString("compression", null);
+
+		JSONArray mirrorsJson = json.optJSONArray("mirrors");
+		if (mirrorsJson != null) {
+			for (int i = 0; i < mirrorsJson.length(); i++) {
+				item.mirrorUrls.add(mirrorsJson.getString(i));
+			}
+		}
+
+		JSONArray patchesJson = json.optJSONArray("patches");
+		if (patchesJson != null) {
+			for (int i = 0; i < patchesJson.length(); i++) {
+				JSONObject patchJson = patchesJson.getJSONObject(i);
+				Patch patch = new Patch();
+				patch.fromHash = patchJson.getString("from");
+				patch.url = patchJson.getString("url");
+				patch.size = patchJson.optInt("size", -1);
+				patch.compression = patchJson.optString("compression", null);
+				item.patches.add(patch);
+			}
+		}
+
+		return item;
+	}
+
 	static NetworkContentItem readFile(XmlPullParser parser) throws IOException, XmlPullParserException {
 		NetworkContentItem item = new NetworkContentItem();
 
@@ -104,7 +224,12 @@ public class NetworkContentItem implements ContentItem {
 			} else if (tag.equals("size")) {
 				item.size = readNumber(parser);
 			} else if (tag.equals("url")) {
-				item.url = readUrl(parser);
+				item.addUrl(readUrl(parser));
+			} else if (tag.equals("patch")) {
+				Patch patch = readPatch(parser);
+				if (patch != null && patch.fromHash != null) {
+					item.patches.add(patch);
+				}
 			} else if (tag.equals("hash")) {
 				item.hash = readText(parser);
 			} else if (tag.equals("region-id")) {
@@ -117,6 +242,17 @@ public class NetworkContentItem implements ContentItem {
 		return item;
 	}
 
+	/**
+	 * First url is main one, following urls with the same encoding are mirrors
+	 */
+	private void addUrl(Url newUrl) {
+		if (url == null) {
+			url = newUrl;
+		} else if (url.compression == null ? newUrl.compression == null : url.compression.equals(newUrl.compression)) {
+			mirrorUrls.add(newUrl.url);
+		}
+	}
+
 	private static Url readUrl(XmlPullParser parser) throws IOException, XmlPullParserException {
 		Url url = new Url();
 		parser.require(XmlPullParser.START_TAG, null, "url");
@@ -133,9 +269,59 @@ public class NetworkContentItem implements ContentItem {
 		return url;
 	}
 
+	/**
+	 * @return patch or null if patch description invalid, so item still can be downloaded fully
+	 */
+	private static Patch readPatch(XmlPullParser parser) throws IOException, XmlPullParserException {
+		Patch patch = new Patch();
+		parser.require(XmlPullParser.START_TAG, null, "patch");
+
+		patch.fromHash = parser.getAttributeValue(null, "from");
+		patch.compression = parser.getAttributeValue(null, "compression");
+		String sizeStr = parser.getAttributeValue(null, "size");
+		patch.url = readText(parser).trim();
+
+		if (sizeStr != null) {
+			try {
+				patch.size = Integer.parseInt(sizeStr.trim());
+			} catch (NumberFormatException e) {
+				log.warn("Patch {} has invalid size {}", patch.url, sizeStr);
+				return null;
+			}
+		}
+
+		return patch;
+	}
+
 	private static class Url {
 		String compression;
 		int size = -1;
 		String url;
 	}
+
+	/**
+	 * Delta from previous version of item, see {@link org.fruct.oss.mapcontent.content.utils.DeltaPatch}
+	 */
+	public static class Patch {
+		private String fromHash;
+		private String compression;
+		private int size = -1;
+		private String url;
+
+		public String getFromHash() {
+			return fromHash;
+		}
+
+		public String getCompression() {
+			return compression;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+	}
 }
@@ -1,100 +1,420 @@
 package org.fruct.oss.mapcontent.content;
 
+import org.fruct.oss.mapcontent.content.utils.MirrorSelector;
 import org.fruct.oss.mapcontent.content.utils.RegionCache;
+import org.fruct.oss.mapcontent.content.utils.StrUtil;
 import org.fruct.oss.mapcontent.content.utils.UrlUtil;
+import org.fruct.oss.mapcontent.content.utils.Utils;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class NetworkStorage implements ContentStorage {
 	private static final Logger log = LoggerFactory.getLogger(NetworkStorage.class);
 
+	private static final int MAX_FETCH_THREADS = 4;
+
 	private final String[] rootUrls;
 	private final RegionCache regionCache;
+	private final MirrorSelector mirrorSelector;
 
 	private List<ContentItem> items = new ArrayList<>();
 
-	public NetworkStorage(String[] rootUrls, RegionCache regionCache) {
+	// Region archives of all visited catalog documents
+	private Set<String> cacheUrls = new LinkedHashSet<>();
+
+	// Fetched catalog documents by url, persisted to restore catalog without network
+	private String rootUrl;
+	private Map<String, NetworkContent> documents = new HashMap<>();
+	private long fetchTime;
+
+	public NetworkStorage(String[] rootUrls, RegionCache regionCache, MirrorSelector mirrorSelector) {
 		this.rootUrls = rootUrls;
 		this.regionCache = regionCache;
+		this.mirrorSelector = mirrorSelector;
 	}
 
 	@Override
 	public void updateContentList() throws IOException {
-		boolean found = false;
 		items.clear();
+		cacheUrls.clear();
 
-		for (String contentUrl : rootUrls) {
-			try {
-				found = true;
+		Document rootDocument = fetchRoot();
+		if (rootDocument == null) {
+			throw new IOException("No one of remote content roots are available");
+		}
 
-				loadContentList(new String[]{contentUrl}, new HashSet<String>());
-				log.info("Content root url {} successfully downloaded", contentUrl);
+		log.info("Content root url {} successfully downloaded", rootDocument.url);
+		loadContentList(rootDocument);
+		updateRegionCache();
+	}
 
-				break;
-			} catch (IOException ex) {
-				log.warn("Content root url {} unavailable", contentUrl);
-			}
+	/**
+	 * Race content roots, best ranked first. Next root requested if current one failed or didn't
+	 * respond within its hedge delay (see {@link MirrorSelector#getHedgeDelay(String)}), first
+	 * successfully fetched root wins and other requests cancelled.
+	 *
+	 * @return root document or null if all roots unavailable
+	 */
+	private Document fetchRoot() throws IOException {
+		List<String> rankedUrls = mirrorSelector.rank(Arrays.asList(rootUrls));
+		if (rankedUrls.isEmpty()) {
+			return null;
 		}
 
-		if (!found) {
-			throw new IOException("No one of remote content roots are available");
+		ExecutorService executor = Executors.newFixedThreadPool(rankedUrls.size());
+		CompletionService<Document> completionService = new ExecutorCompletionService<>(executor);
+		try {
+			int next = 0;
+			int pending = 0;
+			while (next < rankedUrls.size() || pending > 0) {
+				Future<Document> future;
+				if (pending == 0) {
+					future = null;
+				} else if (next < rankedUrls.size()) {
+					future = completionService.poll(mirrorSelector.getHedgeDelay(rankedUrls.get(next - 1)),
+							TimeUnit.MILLISECONDS);
+				} else {
+					future = completionService.take();
+				}
+
+				if (future == null) {
+					String url = rankedUrls.get(next++);
+					completionService.submit(new FetchTask(url, documents.get(url), mirrorSelector));
+					pending++;
+					continue;
+				}
+
+				Document document = future.get();
+				pending--;
+				if (document.content != null) {
+					return document;
+				}
+
+				log.warn("Content root url {} unavailable", document.url);
+				if (next < rankedUrls.size()) {
+					// Don't wait hedge delay after failure
+					String url = rankedUrls.get(next++);
+					completionService.submit(new FetchTask(url, documents.get(url), mirrorSelector));
+					pending++;
+				}
+			}
+
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Content root loading interrupted");
+		} catch (ExecutionException e) {
+			// FetchTask reports errors in result
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
 		}
 	}
 
-	private void loadContentList(String[] contentUrls, Set<String> visited) throws IOException {
-		int countSuccessful = 0;
-		for (String url : contentUrls) {
-			if (visited.contains(url)) {
-				countSuccessful++;
-				continue;
-			}
+	/**
+	 * Update region cache once per refresh, after whole catalog collected
+	 */
+	private void updateRegionCache() {
+		try {
+			regionCache.updateDiskCache(cacheUrls);
+		} catch (IOException e) {
+			log.warn("Can't update region cache", e);
+		}
+	}
 
-			visited.add(url);
-			InputStream conn = null;
+	/**
+	 * Fetch all includes of fetched root document.
+	 *
+	 * Documents fetched in parallel as soon as document that includes them parsed, each url at most once.
+	 * Documents fetched before (see {@link #loadCatalog(File)}) requested conditionally and reused
+	 * if server reports them not modified. Results merged in the same depth-first order as includes
+	 * listed in documents, so content list doesn't depend on network timing. Include that failed to load
+	 * replaced by its previous version if there is one, otherwise only logged and its subtree skipped.
+	 */
+	private void loadContentList(Document rootDocument) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(MAX_FETCH_THREADS);
+		CompletionService<Document> completionService = new ExecutorCompletionService<>(executor);
 
-			try {
-				conn = UrlUtil.getInputStream(url);
+		Map<String, NetworkContent> cachedContents = documents;
+		Map<String, NetworkContent> contents = new HashMap<>();
+		Set<String> submitted = new HashSet<>();
+		try {
+			submitted.add(rootDocument.url);
+			Document document = rootDocument;
+			int pending = 0;
 
-				NetworkContent content = NetworkContent.parse(new InputStreamReader(conn));
+			while (document != null) {
+				if (document.content == null && cachedContents.containsKey(document.url)) {
+					// Keep previous version of temporarily unavailable document, so its items and regions survive
+					log.warn("Content link " + document.url + " unavailable, using previous version: ",
+							document.exception);
+					document = new Document(document.url, cachedContents.get(document.url), null);
+				}
 
-				for (NetworkContentItem item : content.getItems()) {
-					if (item.getType().equals(ContentManagerImpl.GRAPHHOPPER_MAP)) {
-						item.setNetworkStorage(this);
-						items.add(item);
+				if (document.content == null) {
+					log.warn("Content link " + document.url + " broken: ", document.exception);
+				} else {
+					contents.put(document.url, document.content);
+					for (String include : document.content.getIncludes()) {
+						if (submitted.add(include)) {
+							completionService.submit(new FetchTask(include, cachedContents.get(include),
+									mirrorSelector));
+							pending++;
+						}
 					}
+				}
 
-					if (item.getType().equals(ContentManagerImpl.MAPSFORGE_MAP)) {
-						item.setNetworkStorage(this);
-						items.add(item);
-					}
+				if (pending > 0) {
+					document = completionService.take().get();
+					pending--;
+				} else {
+					document = null;
 				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Content list loading interrupted");
+		} catch (ExecutionException e) {
+			// FetchTask reports errors in result
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
 
-				countSuccessful++;
+		this.rootUrl = rootDocument.url;
+		this.documents = contents;
+		this.fetchTime = System.currentTimeMillis();
+		mergeContent(rootUrl, contents, new HashSet<String>());
+	}
 
-				loadContentList(content.getIncludes(), visited);
-				regionCache.updateDiskCache(content.getCacheUrls());
-			} catch (IOException e) {
-				log.warn("Content link " + url + " broken: ", e);
-			} finally {
-				if (conn != null)
-					conn.close();
+	/**
+	 * Restore content list saved by {@link #saveCatalog(File)} without network access.
+	 * Restored documents also serve as validator cache for next {@link #updateContentList()}
+	 *
+	 * @return false if there is no valid saved catalog
+	 */
+	public boolean loadCatalog(File file) {
+		if (!file.isFile()) {
+			return false;
+		}
+
+		InputStreamReader reader = null;
+		try {
+			reader = new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), "UTF-8");
+			JSONObject json = new JSONObject(StrUtil.readerToString(reader));
+
+			Map<String, NetworkContent> contents = new HashMap<>();
+			JSONObject documentsJson = json.getJSONObject("documents");
+			for (Iterator<String> iterator = documentsJson.keys(); iterator.hasNext(); ) {
+				String url = iterator.next();
+				contents.put(url, NetworkContent.fromJson(documentsJson.getJSONObject(url)));
 			}
+
+			items.clear();
+			cacheUrls.clear();
+			rootUrl = json.getString("root");
+			documents = contents;
+			fetchTime = json.getLong("fetch-time");
+			mergeContent(rootUrl, contents, new HashSet<String>());
+			return true;
+		} catch (IOException e) {
+			log.warn("Can't read saved remote catalog {}", file);
+			return false;
+		} catch (JSONException e) {
+			log.warn("Saved remote catalog {} invalid", file);
+			return false;
+		} finally {
+			Utils.silentClose(reader);
 		}
+	}
 
-		if (countSuccessful == 0 && contentUrls.length > 0)
-			throw new IOException("No one of remote content roots are available");
+	/**
+	 * Use documents of catalog loaded or fetched before as validator cache for next
+	 * {@link #updateContentList()}, instead of reading them again with {@link #loadCatalog(File)}
+	 */
+	public void setCachedDocuments(NetworkStorage previous) {
+		documents = previous.documents;
+	}
+
+	/**
+	 * Save fetched catalog documents with their validators as compressed json
+	 */
+	public void saveCatalog(File file) throws IOException {
+		if (rootUrl == null) {
+			return;
+		}
+
+		JSONObject json = new JSONObject();
+		try {
+			json.put("root", rootUrl);
+			json.put("fetch-time", fetchTime);
+
+			JSONObject documentsJson = new JSONObject();
+			for (Map.Entry<String, NetworkContent> entry : documents.entrySet()) {
+				documentsJson.put(entry.getKey(), entry.getValue().toJson());
+			}
+			json.put("documents", documentsJson);
+		} catch (JSONException e) {
+			throw new IOException("Can't serialize remote catalog", e);
+		}
+
+		File tmpFile = new File(file.getPath() + ".tmp");
+		OutputStream output = null;
+		try {
+			file.getParentFile().mkdirs();
+			output = new GZIPOutputStream(new FileOutputStream(tmpFile));
+			output.write(json.toString().getBytes("UTF-8"));
+			output.close();
+			output = null;
+		} finally {
+			Utils.silentClose(output);
+		}
+
+		if (!tmpFile.renameTo(file)) {
+			tmpFile.delete();
+			throw new IOException("Can't replace saved remote catalog " + file);
+		}
+	}
+
+	/**
+	 * @return time when catalog was fetched from network, 0 if nothing fetched or loaded
+	 */
+	public long getFetchTime() {
+		return fetchTime;
+	}
+
+	private void mergeContent(String url, Map<String, NetworkContent> contents, Set<String> visited) {
+		NetworkContent content = contents.get(url);
+		if (!visited.add(url) || content == null) {
+			return;
+		}
+
+		for (NetworkContentItem item : content.getItems()) {
+			if (item.getType().equals(ContentManagerImpl.GRAPHHOPPER_MAP)) {
+				item.setNetworkStorage(this);
+				items.add(item);
+			}
+
+			if (item.getType().equals(ContentManagerImpl.MAPSFORGE_MAP)) {
+				item.setNetworkStorage(this);
+				items.add(item);
+			}
+		}
+
+		cacheUrls.addAll(Arrays.asList(content.getCacheUrls()));
+
+		for (String include : content.getIncludes()) {
+			mergeContent(include, contents, visited);
+		}
 	}
 
 	@Override
 	public List<ContentItem> getContentList() {
 		return items;
 	}
+
+	private static class FetchTask implements Callable<Document> {
+		private final String url;
+
+		// Previously fetched version of document or null
+		private final NetworkContent cachedContent;
+
+		private final MirrorSelector mirrorSelector;
+
+		FetchTask(String url, NetworkContent cachedContent, MirrorSelector mirrorSelector) {
+			this.url = url;
+			this.cachedContent = cachedContent;
+			this.mirrorSelector = mirrorSelector;
+		}
+
+		@Override
+		public Document call() {
+			HttpURLConnection conn = null;
+			InputStream input = null;
+			try {
+				if (cachedContent != null && !mirrorSelector.isAvailable(url)) {
+					// Server failed recently, don't wait for timeout and use previous version
+					return new Document(url, cachedContent, null);
+				}
+
+				long startTime = System.currentTimeMillis();
+				try {
+					conn = UrlUtil.getConditionalConnection(url,
+							cachedContent != null ? cachedContent.getEtag() : null,
+							cachedContent != null ? cachedContent.getLastModified() : 0);
+					mirrorSelector.reportLatency(url, System.currentTimeMillis() - startTime);
+				} catch (IOException e) {
+					if (!UrlUtil.isInterruption(e)) {
+						mirrorSelector.reportFailure(url);
+					}
+					throw e;
+				}
+
+				if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+					if (cachedContent == null) {
+						throw new IOException(url + " returned unexpected code 304");
+					}
+					return new Document(url, cachedContent, null);
+				}
+
+				input = conn.getInputStream();
+
+				NetworkContent content = NetworkContent.parse(new InputStreamReader(input));
+				content.setValidators(conn.getHeaderField("ETag"), conn.getLastModified());
+				return new Document(url, content, null);
+			} catch (IOException | RuntimeException e) {
+				return new Document(url, null, e);
+			} finally {
+				Utils.silentClose(input);
+				if (conn != null) {
+					conn.disconnect();
+				}
+			}
+		}
+	}
+
+	private static class Document {
+		final String url;
+
+		// Either content or exception is null
+		final NetworkContent content;
+		final Exception exception;
+
+		Document(String url, NetworkContent content, Exception exception) {
+			this.url = url;
+			this.content = content;
+			this.exception = exception;
+		}
+	}
 }
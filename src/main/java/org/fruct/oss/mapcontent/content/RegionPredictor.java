@@ -0,0 +1,89 @@
+package org.fruct.oss.mapcontent.content;
+
+import android.location.Location;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extrapolates device movement from recent location fixes.
+ *
+ * Speed and bearing taken from fix itself or, if provider doesn't report them, from two last fixes.
+ * Used only from main thread.
+ */
+class RegionPredictor {
+	private static final float MIN_SPEED = 3;
+	private static final long MAX_FIX_INTERVAL = 60000;
+	private static final double LOOKAHEAD_TIME = 300;
+	private static final double MAX_LOOKAHEAD = 20000;
+	private static final double SAMPLE_STEP = 1000;
+	private static final double EARTH_RADIUS = 6371000;
+
+	private Location previousLocation;
+
+	private float bearing;
+	private double lookahead;
+
+	/**
+	 * Update movement estimation with new location fix
+	 *
+	 * @return distance in meters device expected to travel during lookahead time, 0 if device not moving
+	 */
+	double update(Location location) {
+		float speed = 0;
+		bearing = 0;
+
+		if (location.hasSpeed() && location.hasBearing()) {
+			speed = location.getSpeed();
+			bearing = location.getBearing();
+		} else if (previousLocation != null) {
+			long interval = location.getTime() - previousLocation.getTime();
+			if (interval > 0 && interval <= MAX_FIX_INTERVAL) {
+				speed = previousLocation.distanceTo(location) * 1000 / interval;
+				bearing = previousLocation.bearingTo(location);
+			}
+		}
+
+		previousLocation = location;
+		lookahead = speed < MIN_SPEED ? 0 : Math.min(MAX_LOOKAHEAD, speed * LOOKAHEAD_TIME);
+		return lookahead;
+	}
+
+	/**
+	 * Points along predicted path, from nearest to farthest
+	 */
+	List<Location> createPath(Location location) {
+		List<Location> path = new ArrayList<>();
+		if (lookahead <= 0) {
+			return path;
+		}
+
+		for (double distance = SAMPLE_STEP; ; distance += SAMPLE_STEP) {
+			distance = Math.min(distance, lookahead);
+			path.add(createDestination(location, bearing, distance));
+			if (distance >= lookahead) {
+				break;
+			}
+		}
+
+		return path;
+	}
+
+	private static Location createDestination(Location location, float bearing, double distance) {
+		double lat1 = Math.toRadians(location.getLatitude());
+		double lon1 = Math.toRadians(location.getLongitude());
+		double brng = Math.toRadians(bearing);
+		double angular = distance / EARTH_RADIUS;
+
+		double lat2 = Math.asin(Math.sin(lat1) * Math.cos(angular)
+				+ Math.cos(lat1) * Math.sin(angular) * Math.cos(brng));
+		double lon2 = lon1 + Math.atan2(Math.sin(brng) * Math.sin(angular) * Math.cos(lat1),
+				Math.cos(angular) - Math.sin(lat1) * Math.sin(lat2));
+
+		Location destination = new Location("predicted");
+		destination.setLatitude(Math.toDegrees(lat2));
+		destination.setLongitude(Math.toDegrees(lon2));
+		destination.setTime(location.getTime());
+		return destination;
+	}
+}
@@ -0,0 +1,158 @@
+package org.fruct.oss.mapcontent.content;
+
+import android.location.Location;
+
+import org.fruct.oss.mapcontent.content.utils.Region;
+import org.fruct.oss.mapcontent.content.utils.RegionCache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers result of last region check and decides whether new location fix requires new check.
+ *
+ * After each check tracker calculates horizon: conservative distance from checked location
+ * to nearest boundary of any local content item region. Until device moved farther than horizon
+ * it can't enter or leave any region, so polygons not tested at all.
+ */
+class RegionTracker {
+	// Compensates error of equirectangular distance approximation
+	private static final double SAFETY_FACTOR = 0.9;
+	private static final double MAX_HORIZON = 20000;
+	private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+
+	private final RegionCache regionCache;
+	private final Map<String, ContentItem> currentItems = new HashMap<>();
+
+	private boolean isValid;
+	private double checkLat;
+	private double checkLon;
+	private float checkAccuracy;
+	private double horizon;
+
+	RegionTracker(RegionCache regionCache) {
+		this.regionCache = regionCache;
+	}
+
+	/**
+	 * Test whether device could have crossed any region boundary since last check. Doesn't allocate.
+	 */
+	synchronized boolean isCheckRequired(Location location) {
+		return isBoundaryWithin(location, 0);
+	}
+
+	/**
+	 * Test whether device could reach any region boundary after moving given distance from location
+	 */
+	synchronized boolean isBoundaryWithin(Location location, double distance) {
+		if (!isValid) {
+			return true;
+		}
+
+		double dLat = location.getLatitude() - checkLat;
+		double dLon = (location.getLongitude() - checkLon) * Math.cos(Math.toRadians(checkLat));
+		double moved = Math.hypot(dLat, dLon) * METERS_PER_DEGREE;
+
+		return moved + distance + location.getAccuracy() + checkAccuracy >= horizon;
+	}
+
+	/**
+	 * Store result of region check
+	 *
+	 * @param location checked location
+	 * @param contentTypes content types that was checked
+	 * @param localItems all local content items
+	 * @param matchingItems local items which regions contain location
+	 */
+	void update(Location location, Collection<String> contentTypes, List<ContentItem> localItems,
+				List<ContentItem> matchingItems) {
+		double horizon = calculateHorizon(location, contentTypes, localItems);
+
+		synchronized (this) {
+			currentItems.clear();
+			for (ContentItem item : matchingItems) {
+				if (contentTypes.contains(item.getType()) && !currentItems.containsKey(item.getType())) {
+					currentItems.put(item.getType(), item);
+				}
+			}
+
+			this.checkLat = location.getLatitude();
+			this.checkLon = location.getLongitude();
+			this.checkAccuracy = location.getAccuracy();
+			this.horizon = horizon;
+			this.isValid = true;
+		}
+	}
+
+	/**
+	 * Force check on next location fix. Must be called when local items or regions change.
+	 */
+	synchronized void invalidate() {
+		isValid = false;
+	}
+
+	/**
+	 * @return local item which region contained last checked location
+	 */
+	synchronized ContentItem getCurrentItem(String contentType) {
+		return currentItems.get(contentType);
+	}
+
+	/**
+	 * Horizon from bounding boxes of region index. Polygons tested only for regions which bounding box
+	 * contains location, these polygons already loaded by region check.
+	 */
+	private double calculateHorizon(Location location, Collection<String> contentTypes,
+									List<ContentItem> localItems) {
+		final double lat = location.getLatitude();
+		final double lon = location.getLongitude();
+
+		double horizon = MAX_HORIZON;
+		for (ContentItem item : localItems) {
+			if (!contentTypes.contains(item.getType())) {
+				continue;
+			}
+
+			RegionCache.RegionDesc regionDesc = regionCache.getRegionDesc(item.getRegionId());
+			if (regionDesc != null && !regionDesc.hasBounds) {
+				// Index not built yet, check on every location fix
+				return 0;
+			}
+
+			if (regionDesc != null && !isInside(regionDesc, lat, lon)) {
+				horizon = Math.min(horizon, distanceToBox(regionDesc, lat, lon));
+				continue;
+			}
+
+			// Region of item without descriptor available only if cached from item package
+			Region region = regionCache.getRegion(item.getRegionId());
+			if (region == null) {
+				// Boundary unknown, check on every location fix
+				return 0;
+			}
+
+			horizon = region.distanceToBoundary(lat, lon, horizon);
+		}
+
+		return horizon * SAFETY_FACTOR;
+	}
+
+	private static boolean isInside(RegionCache.RegionDesc regionDesc, double lat, double lon) {
+		return lat >= regionDesc.minLat && lat <= regionDesc.maxLat
+				&& lon >= regionDesc.minLon && lon <= regionDesc.maxLon;
+	}
+
+	/**
+	 * Lower bound of distance from point to region, longitude scaled at latitude farthest from equator
+	 */
+	private static double distanceToBox(RegionCache.RegionDesc regionDesc, double lat, double lon) {
+		double nearestLat = Math.max(regionDesc.minLat, Math.min(regionDesc.maxLat, lat));
+		double lonScale = Math.cos(Math.toRadians(Math.max(Math.abs(lat), Math.abs(nearestLat))));
+
+		double dLat = Math.max(0, Math.max(regionDesc.minLat - lat, lat - regionDesc.maxLat));
+		double dLon = Math.max(0, Math.max(regionDesc.minLon - lon, lon - regionDesc.maxLon)) * lonScale;
+		return Math.hypot(dLat, dLon) * METERS_PER_DEGREE;
+	}
+}
@@ -0,0 +1,77 @@
+package org.fruct.oss.mapcontent.content;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content items that cover route corridor
+ *
+ * @see ContentManager#planRoute(java.util.List, double)
+ */
+public class RoutePlan {
+	private final List<ContentItem> localItems;
+	private final List<ContentItem> remoteItems;
+	private final Map<String, List<double[]>> uncoveredSamples;
+	private final long downloadSize;
+
+	RoutePlan(List<ContentItem> localItems, List<ContentItem> remoteItems,
+			  Map<String, List<double[]>> uncoveredSamples) {
+		this.localItems = Collections.unmodifiableList(localItems);
+		this.remoteItems = Collections.unmodifiableList(remoteItems);
+		this.uncoveredSamples = Collections.unmodifiableMap(uncoveredSamples);
+
+		long downloadSize = 0;
+		for (ContentItem remoteItem : remoteItems) {
+			downloadSize += ((NetworkContentItem) remoteItem).getDownloadSize();
+		}
+		this.downloadSize = downloadSize;
+	}
+
+	/**
+	 * @return local items already covering parts of route
+	 */
+	public List<ContentItem> getLocalItems() {
+		return localItems;
+	}
+
+	/**
+	 * @return remote items that must be downloaded to cover rest of route
+	 */
+	public List<ContentItem> getRemoteItems() {
+		return remoteItems;
+	}
+
+	/**
+	 * @return total download size of remote items in bytes
+	 */
+	public long getDownloadSize() {
+		return downloadSize;
+	}
+
+	public boolean isDownloadRequired() {
+		return !remoteItems.isEmpty();
+	}
+
+	/**
+	 * @return true if local and remote items together cover whole corridor for every content type
+	 */
+	public boolean isFullyCovered() {
+		for (List<double[]> samples : uncoveredSamples.values()) {
+			if (!samples.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Corridor sample points that no local or remote item of content type covers
+	 *
+	 * @return points as arrays of latitude and longitude
+	 */
+	public List<double[]> getUncoveredSamples(String contentType) {
+		List<double[]> samples = uncoveredSamples.get(contentType);
+		return samples != null ? samples : Collections.<double[]>emptyList();
+	}
+}
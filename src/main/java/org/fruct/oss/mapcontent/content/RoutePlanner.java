@@ -0,0 +1,235 @@
+package org.fruct.oss.mapcontent.content;
+
+import android.location.Location;
+
+import org.fruct.oss.mapcontent.content.utils.Region;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Selects content items covering route corridor.
+ *
+ * Corridor represented by sample points taken along route polyline and at both its sides at half of
+ * corridor width. Item covers sample if item region contains it. Items selected greedily for each
+ * content type: local items first, then remote items with most newly covered samples per downloaded byte.
+ * Samples that no item covers reported in plan.
+ */
+class RoutePlanner {
+	private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+	private static final double MIN_SAMPLE_STEP = 200;
+	private static final double MAX_SAMPLE_STEP = 2000;
+
+	private final double[] lats;
+	private final double[] lons;
+	private final int sampleCount;
+
+	private final Map<String, List<Candidate>> candidatesByType = new LinkedHashMap<>();
+
+	/**
+	 * @param contentTypes content types which coverage planned
+	 */
+	RoutePlanner(List<Location> route, double corridorWidth, Collection<String> contentTypes) {
+		for (String contentType : contentTypes) {
+			candidatesByType.put(contentType, new ArrayList<Candidate>());
+		}
+
+		double halfWidth = corridorWidth / 2;
+		double step = Math.max(MIN_SAMPLE_STEP, Math.min(MAX_SAMPLE_STEP, halfWidth));
+
+		List<double[]> samples = new ArrayList<>();
+		if (route.size() == 1) {
+			addSamples(samples, route.get(0), route.get(0), 0, 0, halfWidth);
+		}
+
+		for (int i = 0; i < route.size() - 1; i++) {
+			Location a = route.get(i);
+			Location b = route.get(i + 1);
+			int count = (int) Math.max(1, Math.ceil(distance(a, b) / step));
+
+			for (int k = i == 0 ? 0 : 1; k <= count; k++) {
+				addSamples(samples, a, b, k, count, halfWidth);
+			}
+		}
+
+		sampleCount = samples.size();
+		lats = new double[sampleCount];
+		lons = new double[sampleCount];
+		for (int i = 0; i < sampleCount; i++) {
+			lats[i] = samples.get(i)[0];
+			lons[i] = samples.get(i)[1];
+		}
+	}
+
+	/**
+	 * Bounding boxes of route segments expanded by half of corridor width,
+	 * each box is array of minLat, minLon, maxLat, maxLon
+	 */
+	static List<double[]> getSegmentBounds(List<Location> route, double corridorWidth) {
+		double halfWidth = corridorWidth / 2;
+		List<double[]> bounds = new ArrayList<>();
+
+		for (int i = 0; i < Math.max(1, route.size() - 1); i++) {
+			Location a = route.get(i);
+			Location b = route.get(Math.min(i + 1, route.size() - 1));
+
+			double maxAbsLat = Math.max(Math.abs(a.getLatitude()), Math.abs(b.getLatitude()));
+			double dLat = halfWidth / METERS_PER_DEGREE;
+			double dLon = dLat / Math.max(0.01, Math.cos(Math.toRadians(maxAbsLat + dLat)));
+
+			bounds.add(new double[] {
+					Math.min(a.getLatitude(), b.getLatitude()) - dLat,
+					Math.min(a.getLongitude(), b.getLongitude()) - dLon,
+					Math.max(a.getLatitude(), b.getLatitude()) + dLat,
+					Math.max(a.getLongitude(), b.getLongitude()) + dLon
+			});
+		}
+
+		return bounds;
+	}
+
+	/**
+	 * Add item which region may intersect corridor
+	 */
+	void addCandidate(ContentItem item, Region region, boolean isLocal) {
+		BitSet coverage = new BitSet(sampleCount);
+		for (int i = 0; i < sampleCount; i++) {
+			if (lats[i] >= region.getMinLat() && lats[i] <= region.getMaxLat()
+					&& lons[i] >= region.getMinLon() && lons[i] <= region.getMaxLon()
+					&& region.testHit(lats[i], lons[i])) {
+				coverage.set(i);
+			}
+		}
+
+		if (coverage.isEmpty()) {
+			return;
+		}
+
+		List<Candidate> candidates = candidatesByType.get(item.getType());
+		if (candidates != null) {
+			candidates.add(new Candidate(item, coverage, isLocal));
+		}
+	}
+
+	RoutePlan createPlan() {
+		List<ContentItem> localItems = new ArrayList<>();
+		List<ContentItem> remoteItems = new ArrayList<>();
+		Map<String, List<double[]>> uncoveredSamples = new LinkedHashMap<>();
+
+		for (Map.Entry<String, List<Candidate>> entry : candidatesByType.entrySet()) {
+			List<Candidate> candidates = entry.getValue();
+			BitSet uncovered = new BitSet(sampleCount);
+			for (Candidate candidate : candidates) {
+				uncovered.or(candidate.coverage);
+			}
+
+			// Samples outside of every candidate can't be covered by selection
+			List<double[]> samples = new ArrayList<>();
+			for (int i = uncovered.nextClearBit(0); i < sampleCount; i = uncovered.nextClearBit(i + 1)) {
+				samples.add(new double[] {lats[i], lons[i]});
+			}
+			uncoveredSamples.put(entry.getKey(), Collections.unmodifiableList(samples));
+
+			select(candidates, uncovered, true, localItems);
+			select(candidates, uncovered, false, remoteItems);
+		}
+
+		return new RoutePlan(localItems, remoteItems, uncoveredSamples);
+	}
+
+	private void select(List<Candidate> candidates, BitSet uncovered, boolean isLocal, List<ContentItem> out) {
+		while (!uncovered.isEmpty()) {
+			Candidate best = null;
+			double bestScore = 0;
+
+			for (Candidate candidate : candidates) {
+				if (candidate.isLocal != isLocal) {
+					continue;
+				}
+
+				BitSet newlyCovered = (BitSet) candidate.coverage.clone();
+				newlyCovered.and(uncovered);
+				int count = newlyCovered.cardinality();
+				if (count == 0) {
+					continue;
+				}
+
+				double score = isLocal ? count
+						: (double) count / Math.max(1, ((NetworkContentItem) candidate.item).getDownloadSize());
+				if (score > bestScore) {
+					best = candidate;
+					bestScore = score;
+				}
+			}
+
+			if (best == null) {
+				return;
+			}
+
+			uncovered.andNot(best.coverage);
+			out.add(best.item);
+		}
+	}
+
+	private static void addSamples(List<double[]> samples, Location a, Location b, int k, int count,
+								   double halfWidth) {
+		double t = count == 0 ? 0 : (double) k / count;
+		double lat = a.getLatitude() + (b.getLatitude() - a.getLatitude()) * t;
+		double lon = a.getLongitude() + (b.getLongitude() - a.getLongitude()) * t;
+		samples.add(new double[] {lat, lon});
+
+		if (halfWidth <= 0) {
+			return;
+		}
+
+		double lonScale = Math.cos(Math.toRadians(lat));
+		double dx = (b.getLongitude() - a.getLongitude()) * lonScale;
+		double dy = b.getLatitude() - a.getLatitude();
+		double length = Math.hypot(dx, dy);
+
+		if (length == 0) {
+			// Single point: samples in four directions
+			dx = 1;
+			dy = 0;
+			length = 1;
+			addOffsetSamples(samples, lat, lon, lonScale, 1, 0, halfWidth);
+		}
+
+		// Normal of segment direction
+		addOffsetSamples(samples, lat, lon, lonScale, -dy / length, dx / length, halfWidth);
+	}
+
+	private static void addOffsetSamples(List<double[]> samples, double lat, double lon, double lonScale,
+										 double nx, double ny, double halfWidth) {
+		double offset = halfWidth / METERS_PER_DEGREE;
+		double dLat = ny * offset;
+		double dLon = lonScale > 0 ? nx * offset / lonScale : 0;
+
+		samples.add(new double[] {lat + dLat, lon + dLon});
+		samples.add(new double[] {lat - dLat, lon - dLon});
+	}
+
+	private static double distance(Location a, Location b) {
+		double dLat = b.getLatitude() - a.getLatitude();
+		double dLon = (b.getLongitude() - a.getLongitude())
+				* Math.cos(Math.toRadians((a.getLatitude() + b.getLatitude()) / 2));
+		return Math.hypot(dLat, dLon) * METERS_PER_DEGREE;
+	}
+
+	private static class Candidate {
+		final ContentItem item;
+		final BitSet coverage;
+		final boolean isLocal;
+
+		Candidate(ContentItem item, BitSet coverage, boolean isLocal) {
+			this.item = item;
+			this.coverage = coverage;
+			this.isLocal = isLocal;
+		}
+	}
+}
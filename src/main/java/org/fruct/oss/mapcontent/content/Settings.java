@@ -3,6 +3,7 @@ package org.fruct.oss.mapcontent.content;
 public class Settings {
 	public static final String PREF_STORAGE_PATH = "pref_storage_path";
 	public static final String PREF_OLD_STORAGE_PATH = "pref_old_storage_path";
+	public static final String PREF_PREDICTIVE_DOWNLOAD = "pref_predictive_download";
 
 	public static final String NAVIGATION_DATA = "org.fruct.oss.mapcontent.content.settings.NAVIGATION_DATA";
 	public static final String OFFLINE_MAP = "org.fruct.oss.mapcontent.content.settings.OFFLINE_MAP";
@@ -1,14 +1,20 @@
 package org.fruct.oss.mapcontent.content;
 
+import org.fruct.oss.mapcontent.content.utils.DeltaPatch;
 import org.fruct.oss.mapcontent.content.utils.StrUtil;
+import org.fruct.oss.mapcontent.content.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Iterator;
 import java.util.List;
 
@@ -16,7 +22,11 @@ public class WritableDirectoryStorage extends DirectoryStorage {
 	private static final Logger log = LoggerFactory.getLogger(WritableDirectoryStorage.class);
 
 	public WritableDirectoryStorage(KeyValue digestCache, String path) {
-		super(digestCache, path);
+		this(digestCache, null, path);
+	}
+
+	public WritableDirectoryStorage(KeyValue digestCache, KeyValue metadataIndex, String path) {
+		super(digestCache, metadataIndex, path);
 
 		File file = new File(path);
 		if (!file.mkdirs() && !file.isDirectory()) {
@@ -27,39 +37,14 @@ public class WritableDirectoryStorage extends DirectoryStorage {
 	public ContentItem storeContentItem(ContentItem remoteContentItem, InputStream input) throws IOException {
 		OutputStream output = null;
 
-		String suffix;
-		if (remoteContentItem.getName().endsWith(".ghz")) {
-			suffix = ".ghz";
-		} else if (remoteContentItem.getName().endsWith(".map")) {
-			suffix = ".map";
-		} else {
-			throw new IOException("Wrong file extension");
-		}
-
-		String fileNameStr = remoteContentItem.getHash() + suffix;
-
-		File outputFile = new File(path, fileNameStr + ".roadsignsdownload");
-		File targetFile = new File(path, fileNameStr);
+		File outputFile = getPartialFile(remoteContentItem);
 
 		try {
 			output = new FileOutputStream(outputFile);
 
 			StrUtil.copyStream(input, output);
 
-			markObsolete(remoteContentItem);
-
-			if (!outputFile.renameTo(targetFile))
-				throw new IOException("Can't replace original file with loaded file");
-
-			DirectoryContentItem localItem = new DirectoryContentItem(this, digestCache, remoteContentItem.getName());
-			localItem.setDescription(remoteContentItem.getDescription());
-			localItem.setType(remoteContentItem.getType());
-			localItem.setHash(remoteContentItem.getHash());
-			localItem.setRegionId(remoteContentItem.getRegionId());
-			localItem.setFileName(fileNameStr);
-			items.add(localItem);
-
-			return localItem;
+			return commitContentItem(remoteContentItem, outputFile);
 		} catch (IOException e) {
 			outputFile.delete();
 			throw e;
@@ -69,7 +54,99 @@ public class WritableDirectoryStorage extends DirectoryStorage {
 		}
 	}
 
-	public void migrate(String newPath) {
+	/**
+	 * Reconstruct new version of content item from local version and patch
+	 *
+	 * @param remoteContentItem remote content item
+	 * @param localContentItem local version of the same item, patch must be created from it
+	 * @param patch uncompressed patch stream
+	 * @return local content item
+	 * @throws IOException if patch can't be applied or result doesn't match hash of remote item
+	 */
+	public ContentItem patchContentItem(ContentItem remoteContentItem, DirectoryContentItem localContentItem,
+										InputStream patch) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("sha1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Unsupported hash algorithm", e);
+		}
+
+		File outputFile = new File(path, getTargetFileName(remoteContentItem) + ".roadsignspatch");
+		OutputStream output = null;
+		try {
+			output = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)), digest);
+			DeltaPatch.apply(new File(localContentItem.getPath()), patch, output);
+			output.close();
+			output = null;
+
+			String hash = StrUtil.toHex(digest.digest());
+			if (!hash.equals(remoteContentItem.getHash())) {
+				throw new IOException("Patched file corrupted hash " + hash + " expected " + remoteContentItem.getHash());
+			}
+
+			return commitContentItem(remoteContentItem, outputFile);
+		} catch (IOException e) {
+			Utils.silentClose(output);
+			outputFile.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns temporary file that used to download content item
+	 * @param remoteContentItem remote content item
+	 * @return file in storage directory
+	 */
+	public File getPartialFile(ContentItem remoteContentItem) throws IOException {
+		return new File(path, getTargetFileName(remoteContentItem) + ".roadsignsdownload");
+	}
+
+	/**
+	 * Move completely downloaded file to storage, replacing previous version of content item
+	 *
+	 * @param remoteContentItem remote content item
+	 * @param downloadedFile verified downloaded file
+	 * @return local content item
+	 */
+	public synchronized ContentItem commitContentItem(ContentItem remoteContentItem, File downloadedFile) throws IOException {
+		String fileNameStr = getTargetFileName(remoteContentItem);
+		File targetFile = new File(path, fileNameStr);
+
+		markObsolete(remoteContentItem);
+
+		if (!downloadedFile.renameTo(targetFile))
+			throw new IOException("Can't replace original file with loaded file");
+
+		// Digest already verified during download. Key contains size and mtime of renamed file,
+		// so interruption between rename and put only causes cache miss
+		DirectoryContentItem.putDigest(digestCache, targetFile, remoteContentItem.getHash());
+
+		DirectoryContentItem localItem = new DirectoryContentItem(this, digestCache, remoteContentItem.getName());
+		localItem.setDescription(remoteContentItem.getDescription());
+		localItem.setType(remoteContentItem.getType());
+		localItem.setHash(remoteContentItem.getHash());
+		localItem.setRegionId(remoteContentItem.getRegionId());
+		localItem.setFileName(fileNameStr);
+		items.add(localItem);
+
+		return localItem;
+	}
+
+	private String getTargetFileName(ContentItem remoteContentItem) throws IOException {
+		String suffix;
+		if (remoteContentItem.getName().endsWith(".ghz")) {
+			suffix = ".ghz";
+		} else if (remoteContentItem.getName().endsWith(".map")) {
+			suffix = ".map";
+		} else {
+			throw new IOException("Wrong file extension");
+		}
+
+		return remoteContentItem.getHash() + suffix;
+	}
+
+	public synchronized void migrate(String newPath) {
 		path = newPath;
 		File file = new File(path);
 		if (!file.mkdirs() && !file.isDirectory()) {
@@ -77,8 +154,7 @@ public class WritableDirectoryStorage extends DirectoryStorage {
 		}
 	}
 
-	public void markObsolete(ContentItem contentItem) throws IOException {
-		digestCache.delete(contentItem.getName());
+	public synchronized void markObsolete(ContentItem contentItem) throws IOException {
 		for (Iterator<ContentItem> iterator = items.iterator(); iterator.hasNext(); ) {
 			ContentItem localItem = iterator.next();
 
@@ -91,12 +167,16 @@ public class WritableDirectoryStorage extends DirectoryStorage {
 		}
 	}
 
-	public void deleteObsoleteItems(List<File> protectedFiles) {
+	public synchronized void deleteObsoleteItems(List<File> protectedFiles) {
 		File rootDir = new File(path);
 
 		for (File existingFile : rootDir.listFiles()) {
 			File obsoleteFile = new File(existingFile.getPath() + ".obsolete");
 			if (obsoleteFile.exists() && !protectedFiles.contains(existingFile)) {
+				digestCache.deleteByPrefix(DirectoryContentItem.getFileKeyPrefix(existingFile));
+				if (metadataIndex != null) {
+					metadataIndex.deleteByPrefix(DirectoryContentItem.getFileKeyPrefix(existingFile));
+				}
 				obsoleteFile.delete();
 				existingFile.delete();
 			}
@@ -0,0 +1,199 @@
+package org.fruct.oss.mapcontent.content.download;
+
+import android.support.annotation.Nullable;
+
+import org.fruct.oss.mapcontent.content.utils.StrUtil;
+import org.fruct.oss.mapcontent.content.utils.Utils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Small state file stored near partially downloaded file.
+ * Journal describes how many bytes of partial file are safely written to disk
+ * and allows to continue download after interruption.
+ *
+ * Linear downloads use only committed length, segmented downloads store position of each segment.
+ */
+public class DownloadJournal {
+	private static final Logger log = LoggerFactory.getLogger(DownloadJournal.class);
+
+	private final String url;
+	private final String hash;
+
+	private long committed;
+	private String etag;
+	private List<Segment> segments = new ArrayList<>();
+
+	public DownloadJournal(String url, String hash) {
+		this.url = url;
+		this.hash = hash;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public long getCommitted() {
+		return committed;
+	}
+
+	public void setCommitted(long committed) {
+		this.committed = committed;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public void setEtag(String etag) {
+		this.etag = etag;
+	}
+
+	public List<Segment> getSegments() {
+		return segments;
+	}
+
+	public void setSegments(List<Segment> segments) {
+		this.segments = segments;
+	}
+
+	public boolean isSegmented() {
+		return !segments.isEmpty();
+	}
+
+	public boolean matches(String url, String hash) {
+		return this.url.equals(url) && this.hash.equals(hash);
+	}
+
+	/**
+	 * Test whether journal belongs to the same file downloaded from any of mirrors
+	 */
+	public boolean matches(Collection<String> urls, String hash) {
+		return urls.contains(url) && this.hash.equals(hash);
+	}
+
+	/**
+	 * Atomically replace journal file
+	 * @param file journal file
+	 */
+	public void save(File file) throws IOException {
+		JSONObject json = new JSONObject();
+		try {
+			json.put("url", url);
+			json.put("hash", hash);
+			json.put("committed", committed);
+			if (etag != null) {
+				json.put("etag", etag);
+			}
+
+			if (!segments.isEmpty()) {
+				JSONArray segmentsJson = new JSONArray();
+				for (Segment segment : segments) {
+					JSONObject segmentJson = new JSONObject();
+					segmentJson.put("start", segment.start);
+					segmentJson.put("end", segment.end);
+					segmentJson.put("position", segment.position);
+					segmentsJson.put(segmentJson);
+				}
+				json.put("segments", segmentsJson);
+			}
+		} catch (JSONException e) {
+			throw new IOException("Can't serialize download journal", e);
+		}
+
+		File tmpFile = new File(file.getPath() + ".tmp");
+		FileOutputStream output = null;
+		try {
+			output = new FileOutputStream(tmpFile);
+			output.write(json.toString().getBytes("UTF-8"));
+			output.getFD().sync();
+		} finally {
+			Utils.silentClose(output);
+		}
+
+		if (!tmpFile.renameTo(file)) {
+			tmpFile.delete();
+			throw new IOException("Can't replace download journal " + file);
+		}
+	}
+
+	@Nullable
+	public static DownloadJournal load(File file) {
+		if (!file.isFile()) {
+			return null;
+		}
+
+		FileReader reader = null;
+		try {
+			reader = new FileReader(file);
+			JSONObject json = new JSONObject(StrUtil.readerToString(reader));
+
+			DownloadJournal journal = new DownloadJournal(json.getString("url"), json.getString("hash"));
+			journal.committed = json.getLong("committed");
+			journal.etag = json.optString("etag", null);
+
+			JSONArray segmentsJson = json.optJSONArray("segments");
+			if (segmentsJson != null) {
+				for (int i = 0; i < segmentsJson.length(); i++) {
+					JSONObject segmentJson = segmentsJson.getJSONObject(i);
+					Segment segment = new Segment(segmentJson.getLong("start"), segmentJson.getLong("end"));
+					segment.position = segmentJson.getLong("position");
+					journal.segments.add(segment);
+				}
+			}
+
+			return journal;
+		} catch (IOException e) {
+			log.warn("Can't read download journal {}", file);
+			return null;
+		} catch (JSONException e) {
+			log.warn("Download journal {} invalid", file);
+			return null;
+		} finally {
+			Utils.silentClose(reader);
+		}
+	}
+
+	public static void delete(File file) {
+		file.delete();
+		new File(file.getPath() + ".tmp").delete();
+	}
+
+	/**
+	 * Byte range [start, end) of segmented download
+	 */
+	public static class Segment {
+		public final long start;
+		public final long end;
+
+		/**
+		 * First byte that not yet written
+		 */
+		public volatile long position;
+
+		public Segment(long start, long end) {
+			this.start = start;
+			this.end = end;
+			this.position = start;
+		}
+
+		public boolean isComplete() {
+			return position >= end;
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package org.fruct.oss.mapcontent.content.download;
+
+import org.fruct.oss.mapcontent.content.NetworkContentItem;
+import org.fruct.oss.mapcontent.content.utils.StrUtil;
+import org.fruct.oss.mapcontent.content.utils.Utils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * List of requested downloads persisted to disk, so downloads can be restarted after process death.
+ *
+ * Queue also tracks aggregated progress of current batch: batch starts when first item added
+ * to empty queue and ends when queue becomes empty.
+ */
+public class DownloadQueue {
+	private static final Logger log = LoggerFactory.getLogger(DownloadQueue.class);
+
+	public static final int MAX_FAILURES = 3;
+
+	private static final long PROGRESS_SAVE_INTERVAL = 5000;
+
+	private File file;
+	private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+	private long batchTotal;
+	private long batchCompleted;
+	private long lastSaveTime;
+
+	public DownloadQueue(File file) {
+		this.file = file;
+		load();
+	}
+
+	public synchronized List<Entry> getEntries() {
+		return new ArrayList<>(entries.values());
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return queued entry of item or null if item not queued
+	 */
+	public synchronized Entry get(String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * Add item to queue. Nothing happens if item already queued.
+	 */
+	public synchronized void add(NetworkContentItem item, int priority) {
+		if (entries.containsKey(item.getName())) {
+			return;
+		}
+
+		entries.put(item.getName(), new Entry(item, priority));
+		batchTotal += item.getDownloadSize();
+		save();
+	}
+
+	public synchronized void updateProgress(String name, int downloaded) {
+		Entry entry = entries.get(name);
+		if (entry == null) {
+			return;
+		}
+
+		entry.downloaded = downloaded;
+
+		long time = System.currentTimeMillis();
+		if (time - lastSaveTime > PROGRESS_SAVE_INTERVAL) {
+			save();
+		}
+	}
+
+	/**
+	 * Remove successfully downloaded item
+	 */
+	public synchronized void complete(String name) {
+		Entry entry = entries.remove(name);
+		if (entry != null) {
+			batchCompleted += entry.item.getDownloadSize();
+		}
+		onRemoved();
+	}
+
+	/**
+	 * Remove item that user doesn't want to download anymore
+	 */
+	public synchronized void remove(String name) {
+		Entry entry = entries.remove(name);
+		if (entry != null) {
+			batchTotal -= entry.item.getDownloadSize();
+		}
+		onRemoved();
+	}
+
+	/**
+	 * Register failed attempt. Item removed from queue after {@link #MAX_FAILURES} attempts.
+	 * Item that still queued stays in batch totals, so caller must retry it.
+	 *
+	 * @return true if item still queued
+	 */
+	public synchronized boolean fail(String name) {
+		Entry entry = entries.get(name);
+		if (entry == null) {
+			return false;
+		}
+
+		if (++entry.failures >= MAX_FAILURES) {
+			remove(name);
+			return false;
+		} else {
+			save();
+			return true;
+		}
+	}
+
+	/**
+	 * @return bytes downloaded in current batch
+	 */
+	public synchronized long getBatchDownloaded() {
+		long downloaded = batchCompleted;
+		for (Entry entry : entries.values()) {
+			downloaded += entry.downloaded;
+		}
+		return downloaded;
+	}
+
+	/**
+	 * @return total bytes of current batch
+	 */
+	public synchronized long getBatchTotal() {
+		return batchTotal;
+	}
+
+	/**
+	 * Move queue file to new location
+	 */
+	public synchronized void migrate(File newFile) {
+		file.delete();
+		file = newFile;
+		save();
+	}
+
+	private void onRemoved() {
+		if (entries.isEmpty()) {
+			batchTotal = 0;
+			batchCompleted = 0;
+		}
+		save();
+	}
+
+	private void load() {
+		if (!file.isFile()) {
+			return;
+		}
+
+		FileReader reader = null;
+		try {
+			reader = new FileReader(file);
+			JSONArray json = new JSONArray(StrUtil.readerToString(reader));
+
+			for (int i = 0; i < json.length(); i++) {
+				JSONObject entryJson = json.getJSONObject(i);
+				Entry entry = new Entry(NetworkContentItem.fromJson(entryJson.getJSONObject("item")),
+						entryJson.getInt("priority"));
+				entry.downloaded = entryJson.optInt("downloaded", 0);
+				entry.failures = entryJson.optInt("failures", 0);
+
+				entries.put(entry.item.getName(), entry);
+				batchTotal += entry.item.getDownloadSize();
+			}
+		} catch (IOException e) {
+			log.warn("Can't read download queue {}", file);
+		} catch (JSONException e) {
+			log.warn("Download queue {} invalid", file);
+		} finally {
+			Utils.silentClose(reader);
+		}
+	}
+
+	private void save() {
+		lastSaveTime = System.currentTimeMillis();
+
+		File tmpFile = new File(file.getPath() + ".tmp");
+		FileOutputStream output = null;
+		try {
+			JSONArray json = new JSONArray();
+			for (Entry entry : entries.values()) {
+				JSONObject entryJson = new JSONObject();
+				entryJson.put("item", entry.item.toJson());
+				entryJson.put("priority", entry.priority);
+				entryJson.put("downloaded", entry.downloaded);
+				entryJson.put("failures", entry.failures);
+				json.put(entryJson);
+			}
+
+			file.getParentFile().mkdirs();
+			output = new FileOutputStream(tmpFile);
+			output.write(json.toString().getBytes("UTF-8"));
+			output.close();
+			output = null;
+
+			if (!tmpFile.renameTo(file)) {
+				log.warn("Can't replace download queue {}", file);
+			}
+		} catch (IOException e) {
+			log.warn("Can't save download queue {}", file);
+		} catch (JSONException e) {
+			log.warn("Can't serialize download queue");
+		} finally {
+			Utils.silentClose(output);
+		}
+	}
+
+	public static class Entry {
+		public final NetworkContentItem item;
+		public final int priority;
+
+		public int downloaded;
+		public int failures;
+
+		private Entry(NetworkContentItem item, int priority) {
+			this.item = item;
+			this.priority = priority;
+		}
+	}
+}
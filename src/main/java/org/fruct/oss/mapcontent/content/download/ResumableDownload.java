@@ -0,0 +1,225 @@
+package org.fruct.oss.mapcontent.content.download;
+
+import org.fruct.oss.mapcontent.content.NetworkContentItem;
+import org.fruct.oss.mapcontent.content.utils.DigestInputStream;
+import org.fruct.oss.mapcontent.content.utils.MirrorSelector;
+import org.fruct.oss.mapcontent.content.utils.ProgressInputStream;
+import org.fruct.oss.mapcontent.content.utils.ResponseCodeException;
+import org.fruct.oss.mapcontent.content.utils.UrlUtil;
+import org.fruct.oss.mapcontent.content.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Download that can be continued after interruption using HTTP Range requests.
+ *
+ * Partial data is stored in the target file, committed length stored in {@link DownloadJournal}.
+ * Content hash is verified over the whole file, already committed part is re-hashed from disk on resume.
+ * If mirror fails in the middle of download, download continues from committed length on next mirror.
+ */
+public class ResumableDownload {
+	private static final Logger log = LoggerFactory.getLogger(ResumableDownload.class);
+
+	private static final int BUFFER_SIZE = 65536;
+	private static final int COMMIT_INTERVAL = 1024 * 1024;
+
+	// Missing in HttpURLConnection
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	private final NetworkContentItem remoteItem;
+	private final File partialFile;
+	private final File journalFile;
+	private final MirrorSelector mirrorSelector;
+
+	private boolean isCorrupted;
+
+	public ResumableDownload(NetworkContentItem remoteItem, File partialFile, MirrorSelector mirrorSelector) {
+		this.remoteItem = remoteItem;
+		this.partialFile = partialFile;
+		this.journalFile = getJournalFile(partialFile);
+		this.mirrorSelector = mirrorSelector;
+	}
+
+	/**
+	 * Compressed streams can't be continued from arbitrary offset
+	 */
+	public static boolean isSupported(NetworkContentItem remoteItem) {
+		return remoteItem.getCompression() == null;
+	}
+
+	public static File getJournalFile(File partialFile) {
+		return new File(partialFile.getPath() + ".journal");
+	}
+
+	/**
+	 * Download remote item into partial file. After successful return file contains verified data.
+	 *
+	 * @param progressListener listener
+	 */
+	public void download(ProgressInputStream.ProgressListener progressListener) throws IOException {
+		IOException lastException = null;
+		for (String url : mirrorSelector.rank(remoteItem.getUrls())) {
+			if (lastException != null) {
+				log.warn("Continue download of {} from mirror {}", remoteItem.getName(), url);
+			}
+
+			try {
+				download(url, progressListener);
+				return;
+			} catch (IOException e) {
+				if (isCorrupted || UrlUtil.isInterruption(e)) {
+					throw e;
+				}
+
+				mirrorSelector.reportFailure(url);
+				lastException = e;
+			}
+		}
+
+		throw lastException;
+	}
+
+	private void download(String url, ProgressInputStream.ProgressListener progressListener) throws IOException {
+		DownloadJournal journal = DownloadJournal.load(journalFile);
+
+		long offset = 0;
+		String ifRange = null;
+		if (journal != null && journal.matches(remoteItem.getUrls(), remoteItem.getHash())
+				&& !journal.isSegmented() && partialFile.length() >= journal.getCommitted()) {
+			offset = journal.getCommitted();
+			// Validator of other mirror can't be compared, data verified by hash anyway
+			ifRange = url.equals(journal.getUrl()) ? journal.getEtag() : null;
+		}
+		journal = new DownloadJournal(url, remoteItem.getHash());
+
+		long startTime = System.currentTimeMillis();
+		HttpURLConnection conn;
+		try {
+			conn = UrlUtil.getRangeConnection(url, offset, ifRange);
+		} catch (ResponseCodeException e) {
+			// Connection errors fail over to next mirror, which continues from committed offset
+			if (offset == 0 || (e.getResponseCode() != HTTP_RANGE_NOT_SATISFIABLE
+					&& e.getResponseCode() != HttpURLConnection.HTTP_PARTIAL)) {
+				throw e;
+			}
+
+			// Server can't satisfy range request, start from scratch
+			log.warn("Can't resume download of {}", remoteItem.getName());
+			offset = 0;
+			conn = UrlUtil.getRangeConnection(url, 0, null);
+		}
+		mirrorSelector.reportLatency(url, System.currentTimeMillis() - startTime);
+		startTime = System.currentTimeMillis();
+
+		if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+			offset = 0;
+		}
+
+		if (offset > 0) {
+			log.info("Resuming download of {} from {}", remoteItem.getName(), offset);
+		}
+
+		journal.setEtag(conn.getHeaderField("ETag"));
+		journal.setCommitted(offset);
+
+		InputStream input = null;
+		RandomAccessFile output = null;
+		DigestInputStream digestStream = null;
+		long position = offset;
+		try {
+			input = new ProgressInputStream(conn.getInputStream(), (int) offset, remoteItem.getDownloadSize(),
+					100000, progressListener);
+
+			try {
+				digestStream = new DigestInputStream(input, "sha1", remoteItem.getHash());
+				input = digestStream;
+				restoreDigest(digestStream, offset);
+			} catch (NoSuchAlgorithmException e) {
+				log.warn("Unsupported hash algorithm");
+			}
+
+			output = new RandomAccessFile(partialFile, "rw");
+			output.setLength(offset);
+			output.seek(offset);
+			journal.save(journalFile);
+
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = input.read(buffer)) > 0) {
+				output.write(buffer, 0, read);
+				position += read;
+
+				if (position - journal.getCommitted() >= COMMIT_INTERVAL) {
+					commit(output, journal, position);
+				}
+
+				if (Thread.currentThread().isInterrupted()) {
+					commit(output, journal, position);
+					throw new InterruptedIOException("Download thread interrupted");
+				}
+			}
+
+			output.getFD().sync();
+			DownloadJournal.delete(journalFile);
+			mirrorSelector.reportThroughput(url, position - offset, System.currentTimeMillis() - startTime);
+		} catch (IOException e) {
+			if (digestStream != null && digestStream.isCorrupted()) {
+				isCorrupted = true;
+				discard();
+			} else if (output != null && !UrlUtil.isInterruption(e)) {
+				// Keep received data for next mirror
+				commitSilently(output, journal, position);
+			}
+			throw e;
+		} finally {
+			Utils.silentClose(output);
+			Utils.silentClose(input);
+			conn.disconnect();
+		}
+	}
+
+	/**
+	 * Delete partial file and journal
+	 */
+	public void discard() {
+		partialFile.delete();
+		DownloadJournal.delete(journalFile);
+	}
+
+	private void commit(RandomAccessFile output, DownloadJournal journal, long position) throws IOException {
+		output.getFD().sync();
+		journal.setCommitted(position);
+		journal.save(journalFile);
+	}
+
+	private void commitSilently(RandomAccessFile output, DownloadJournal journal, long position) {
+		try {
+			commit(output, journal, position);
+		} catch (IOException e) {
+			log.warn("Can't commit download journal", e);
+		}
+	}
+
+	private void restoreDigest(DigestInputStream digestStream, long offset) throws IOException {
+		if (offset == 0) {
+			return;
+		}
+
+		InputStream prefix = null;
+		try {
+			prefix = new FileInputStream(partialFile);
+			digestStream.updatePrefix(prefix, offset);
+		} finally {
+			Utils.silentClose(prefix);
+		}
+	}
+}
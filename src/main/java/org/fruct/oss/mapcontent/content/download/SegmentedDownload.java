@@ -0,0 +1,412 @@
+package org.fruct.oss.mapcontent.content.download;
+
+import org.fruct.oss.mapcontent.content.NetworkContentItem;
+import org.fruct.oss.mapcontent.content.utils.MirrorSelector;
+import org.fruct.oss.mapcontent.content.utils.ProgressInputStream;
+import org.fruct.oss.mapcontent.content.utils.StrUtil;
+import org.fruct.oss.mapcontent.content.utils.UrlUtil;
+import org.fruct.oss.mapcontent.content.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download that fetches byte ranges of a content item through several parallel connections
+ * into preallocated file.
+ *
+ * Segment positions are persisted in {@link DownloadJournal}, so interrupted segmented download
+ * can be continued. Hash is verified over assembled file. Segment whose mirror failed continues
+ * from its current position on next mirror.
+ */
+public class SegmentedDownload {
+	private static final Logger log = LoggerFactory.getLogger(SegmentedDownload.class);
+
+	public static final int DEFAULT_SEGMENTS = 4;
+
+	private static final int MIN_SEGMENT_SIZE = 1024 * 1024;
+	private static final int BUFFER_SIZE = 65536;
+	private static final int COMMIT_INTERVAL = 1024 * 1024;
+	private static final int REPORT_INTERVAL = 100000;
+
+	private final NetworkContentItem remoteItem;
+	private final File partialFile;
+	private final File journalFile;
+	private final int segmentCount;
+	private final MirrorSelector mirrorSelector;
+
+	// Mirrors of item from best to worst
+	private List<String> urls;
+
+	private final AtomicLong downloaded = new AtomicLong();
+	private final AtomicLong uncommitted = new AtomicLong();
+
+	private DownloadJournal journal;
+
+	// Journal continues committed data of single stream download, which must survive fallback to it
+	private boolean isLinearContinuation;
+
+	private RandomAccessFile file;
+	private ProgressInputStream.ProgressListener progressListener;
+	private long lastReported;
+
+	public SegmentedDownload(NetworkContentItem remoteItem, File partialFile, int segmentCount,
+							 MirrorSelector mirrorSelector) {
+		this.remoteItem = remoteItem;
+		this.partialFile = partialFile;
+		this.journalFile = ResumableDownload.getJournalFile(partialFile);
+		this.segmentCount = segmentCount;
+		this.mirrorSelector = mirrorSelector;
+	}
+
+	/**
+	 * Segmented download requires known uncompressed size and big enough file
+	 */
+	public static boolean isSupported(NetworkContentItem remoteItem) {
+		return ResumableDownload.isSupported(remoteItem) && remoteItem.getDownloadSize() >= 2 * MIN_SEGMENT_SIZE;
+	}
+
+	/**
+	 * Download remote item into partial file. After successful return file contains verified data.
+	 *
+	 * @param progressListener listener
+	 * @return false if server doesn't support range requests and single stream download should be used
+	 */
+	public boolean download(ProgressInputStream.ProgressListener progressListener) throws IOException {
+		this.progressListener = progressListener;
+		this.urls = mirrorSelector.rank(remoteItem.getUrls());
+
+		final long size = remoteItem.getDownloadSize();
+		journal = createJournal(size);
+
+		List<DownloadJournal.Segment> pending = new ArrayList<>();
+		for (DownloadJournal.Segment segment : journal.getSegments()) {
+			downloaded.addAndGet(segment.position - segment.start);
+			if (!segment.isComplete()) {
+				pending.add(segment);
+			}
+		}
+
+		file = new RandomAccessFile(partialFile, "rw");
+		try {
+			if (!pending.isEmpty()) {
+				// First connection checks that server supports ranges
+				DownloadJournal.Segment first = pending.get(0);
+				int probeIndex = 0;
+				HttpURLConnection probe = null;
+				while (probe == null) {
+					try {
+						probe = connect(urls.get(probeIndex), first);
+					} catch (IOException e) {
+						if (UrlUtil.isInterruption(e) || probeIndex + 1 >= urls.size()) {
+							throw e;
+						}
+						probeIndex++;
+					}
+				}
+
+				String probeUrl = urls.get(probeIndex);
+				if (!probeUrl.equals(journal.getUrl())) {
+					DownloadJournal mirrorJournal = new DownloadJournal(probeUrl, remoteItem.getHash());
+					mirrorJournal.setSegments(journal.getSegments());
+					journal = mirrorJournal;
+				}
+
+				if (probe.getResponseCode() != HttpURLConnection.HTTP_PARTIAL
+						|| UrlUtil.getEntityLength(probe) != size) {
+					log.info("Server doesn't support range requests for {}", remoteItem.getName());
+					probe.disconnect();
+					Utils.silentClose(file);
+					if (!isLinearContinuation) {
+						discard();
+					}
+					return false;
+				}
+
+				// Partial file extended only after segmented download confirmed, single stream download
+				// continues from length of committed data
+				file.setLength(size);
+
+				if (journal.getEtag() == null) {
+					journal.setEtag(probe.getHeaderField("ETag"));
+				}
+				journal.save(journalFile);
+
+				fetchSegments(pending, probe, probeIndex);
+			}
+
+			file.getFD().sync();
+		} catch (IOException e) {
+			commitSilently();
+			throw e;
+		} finally {
+			Utils.silentClose(file);
+		}
+
+		verify();
+		DownloadJournal.delete(journalFile);
+		return true;
+	}
+
+	/**
+	 * Delete partial file and journal
+	 */
+	public void discard() {
+		partialFile.delete();
+		DownloadJournal.delete(journalFile);
+	}
+
+	private DownloadJournal createJournal(long size) {
+		DownloadJournal journal = DownloadJournal.load(journalFile);
+		boolean matches = journal != null && journal.matches(remoteItem.getUrls(), remoteItem.getHash());
+
+		if (matches && journal.isSegmented() && partialFile.length() == size) {
+			return journal;
+		}
+
+		isLinearContinuation = matches && !journal.isSegmented() && journal.getCommitted() > 0
+				&& partialFile.length() >= journal.getCommitted();
+
+		long linearCommitted = 0;
+		String etag = null;
+		if (isLinearContinuation) {
+			// Keep data of previous single stream download as beginning of first segment
+			linearCommitted = journal.getCommitted();
+			etag = journal.getEtag();
+		}
+
+		journal = new DownloadJournal(matches ? journal.getUrl() : urls.get(0), remoteItem.getHash());
+		journal.setEtag(etag);
+
+		long count = Math.max(1, Math.min(segmentCount, size / MIN_SEGMENT_SIZE));
+		long segmentSize = (size + count - 1) / count;
+
+		List<DownloadJournal.Segment> segments = new ArrayList<>();
+		for (long start = 0; start < size; start += segmentSize) {
+			DownloadJournal.Segment segment = new DownloadJournal.Segment(start, Math.min(size, start + segmentSize));
+			if (start == 0) {
+				segment.position = Math.min(linearCommitted, segment.end);
+			}
+			segments.add(segment);
+		}
+		journal.setSegments(segments);
+
+		return journal;
+	}
+
+	private void fetchSegments(List<DownloadJournal.Segment> pending, HttpURLConnection probe, int probeIndex)
+			throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(pending.size());
+		List<Future<?>> futures = new ArrayList<>();
+		boolean isInterrupted = false;
+
+		try {
+			for (int i = 0; i < pending.size(); i++) {
+				futures.add(executor.submit(new SegmentTask(pending.get(i), i == 0 ? probe : null, probeIndex)));
+			}
+
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			isInterrupted = true;
+			throw new InterruptedIOException("Download thread interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else {
+				throw new IOException("Segment download failed", cause);
+			}
+		} finally {
+			executor.shutdownNow();
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					isInterrupted = true;
+				} catch (Exception ignored) {
+				}
+			}
+
+			// Flag restored after segment tasks stopped, so waiting for them isn't cut short
+			if (isInterrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Request rest of segment from mirror
+	 */
+	private HttpURLConnection connect(String url, DownloadJournal.Segment segment) throws IOException {
+		// Validator of other mirror can't be compared, data verified by hash anyway
+		String ifRange = url.equals(journal.getUrl()) ? journal.getEtag() : null;
+
+		long startTime = System.currentTimeMillis();
+		try {
+			HttpURLConnection conn = UrlUtil.getRangeConnection(url, segment.position, segment.end - 1, ifRange);
+			mirrorSelector.reportLatency(url, System.currentTimeMillis() - startTime);
+			return conn;
+		} catch (IOException e) {
+			if (!UrlUtil.isInterruption(e)) {
+				mirrorSelector.reportFailure(url);
+			}
+			throw e;
+		}
+	}
+
+	private void verify() throws IOException {
+		InputStream input = null;
+		try {
+			input = new FileInputStream(partialFile);
+			String hash = StrUtil.hashStream(input, "sha1", BUFFER_SIZE);
+			if (!hash.equals(remoteItem.getHash())) {
+				discard();
+				throw new IOException("Data corrupted hash " + hash + " expected " + remoteItem.getHash());
+			}
+		} finally {
+			Utils.silentClose(input);
+		}
+	}
+
+	private void written(int count) throws IOException {
+		long current = downloaded.addAndGet(count);
+
+		synchronized (this) {
+			if (progressListener != null && current - lastReported >= REPORT_INTERVAL) {
+				lastReported = current;
+				progressListener.update((int) current, remoteItem.getDownloadSize());
+			}
+		}
+
+		if (uncommitted.addAndGet(count) >= COMMIT_INTERVAL) {
+			uncommitted.set(0);
+			commit();
+		}
+	}
+
+	private synchronized void commit() throws IOException {
+		// Positions must be captured before data synced, so journal never points past durable data
+		List<DownloadJournal.Segment> snapshot = new ArrayList<>();
+		for (DownloadJournal.Segment segment : journal.getSegments()) {
+			DownloadJournal.Segment copy = new DownloadJournal.Segment(segment.start, segment.end);
+			copy.position = segment.position;
+			snapshot.add(copy);
+		}
+
+		file.getFD().sync();
+
+		DownloadJournal committed = new DownloadJournal(journal.getUrl(), journal.getHash());
+		committed.setEtag(journal.getEtag());
+		committed.setSegments(snapshot);
+		committed.save(journalFile);
+	}
+
+	private void commitSilently() {
+		try {
+			commit();
+		} catch (IOException e) {
+			log.warn("Can't commit download journal", e);
+		}
+	}
+
+	private class SegmentTask implements Callable<Void> {
+		private final DownloadJournal.Segment segment;
+		private HttpURLConnection conn;
+		private int mirrorIndex;
+
+		private SegmentTask(DownloadJournal.Segment segment, HttpURLConnection conn, int mirrorIndex) {
+			this.segment = segment;
+			this.conn = conn;
+			this.mirrorIndex = mirrorIndex;
+		}
+
+		@Override
+		public Void call() throws IOException {
+			for (int attempt = 1; ; attempt++) {
+				String url = urls.get(mirrorIndex);
+				try {
+					fetch(url);
+					return null;
+				} catch (IOException e) {
+					if (UrlUtil.isInterruption(e) || attempt >= urls.size()) {
+						throw e;
+					}
+
+					mirrorIndex = (mirrorIndex + 1) % urls.size();
+					log.warn("Segment of {} continues from mirror {}", remoteItem.getName(), urls.get(mirrorIndex));
+				}
+			}
+		}
+
+		private void fetch(String url) throws IOException {
+			if (conn == null) {
+				conn = connect(url, segment);
+
+				if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+					conn.disconnect();
+					conn = null;
+					mirrorSelector.reportFailure(url);
+					throw new IOException("Server returned whole entity for segment request");
+				}
+			}
+
+			InputStream input = null;
+			// Each segment uses own descriptor, RandomAccessFile isn't closed by thread interruption
+			RandomAccessFile output = null;
+			long startPosition = segment.position;
+			long startTime = System.currentTimeMillis();
+			try {
+				input = conn.getInputStream();
+				output = new RandomAccessFile(partialFile, "rw");
+				output.seek(segment.position);
+
+				byte[] buffer = new byte[BUFFER_SIZE];
+				while (!segment.isComplete()) {
+					int toRead = (int) Math.min(buffer.length, segment.end - segment.position);
+					int read = input.read(buffer, 0, toRead);
+					if (read < 0) {
+						throw new IOException("Unexpected end of segment");
+					}
+
+					output.write(buffer, 0, read);
+					segment.position += read;
+
+					written(read);
+
+					if (Thread.currentThread().isInterrupted()) {
+						throw new InterruptedIOException("Segment download interrupted");
+					}
+				}
+
+				mirrorSelector.reportThroughput(url, segment.position - startPosition,
+						System.currentTimeMillis() - startTime);
+			} catch (IOException e) {
+				if (!UrlUtil.isInterruption(e)) {
+					mirrorSelector.reportFailure(url);
+				}
+				throw e;
+			} finally {
+				Utils.silentClose(output);
+				Utils.silentClose(input);
+				conn.disconnect();
+				conn = null;
+			}
+		}
+	}
+}
@@ -24,6 +24,7 @@ import android.widget.Toast;
 import org.fruct.oss.mapcontent.R;
 import org.fruct.oss.mapcontent.content.ContentItem;
 import org.fruct.oss.mapcontent.content.ContentService;
+import org.fruct.oss.mapcontent.content.DirectoryContentItem;
 import org.fruct.oss.mapcontent.content.connections.ContentServiceConnection;
 import org.fruct.oss.mapcontent.content.connections.ContentServiceConnectionListener;
 import org.fruct.oss.mapcontent.content.connections.GHContentServiceConnection;
@@ -34,6 +35,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -42,7 +44,7 @@ public class ContentFragment extends Fragment
 		ContentDialog.Listener, ActionMode.Callback, DownloadProgressFragment.OnFragmentInteractionListener,
 		ActionBar.OnNavigationListener,
 		ContentServiceConnectionListener,
-		ContentService.Listener, ContentService.ItemListener {
+		ContentService.LocalListListener, ContentService.ItemListener {
 	public static final String ACTION_SHOW_ONLINE_CONTENT = "org.fruct.oss.ikm.ACTION_SHOW_ONLINE_CONTENT";
 	public static final String ACTION_UPDATE_READY = "org.fruct.oss.ikm.ACTION_UPDATE_READY";
 
@@ -201,6 +203,27 @@ public class ContentFragment extends Fragment
 		setContentList(localItems, remoteItems);
 	}
 
+	@Override
+	public void localListChanged(List<ContentItem> added, List<ContentItem> removed, List<ContentItem> changed) {
+		List<ContentItem> newLocalItems = new ArrayList<>(localItems);
+		newLocalItems.removeAll(removed);
+
+		for (ContentItem changedItem : changed) {
+			String changedPath = ((DirectoryContentItem) changedItem).getPath();
+			for (Iterator<ContentItem> iterator = newLocalItems.iterator(); iterator.hasNext(); ) {
+				if (((DirectoryContentItem) iterator.next()).getPath().equals(changedPath)) {
+					iterator.remove();
+				}
+			}
+			newLocalItems.add(changedItem);
+		}
+
+		newLocalItems.addAll(added);
+
+		localItems = newLocalItems;
+		setContentList(localItems, remoteItems);
+	}
+
 	@Override
 	public void remoteListReady(List<ContentItem> list) {
 		remoteItems = new ArrayList<>(list);
@@ -409,7 +432,10 @@ public class ContentFragment extends Fragment
 	@Override
 	public void stopButtonPressed() {
 		if (remoteContent != null) {
-			remoteContent.interrupt();
+			ContentItem downloadingItem = downloadFragment.getCurrentItem();
+			if (downloadingItem != null) {
+				remoteContent.cancelDownload(downloadingItem);
+			}
 		}
 	}
 
@@ -484,7 +510,7 @@ public class ContentFragment extends Fragment
 
 				if (localItem == null) {
 					newState = LocalContentState.NOT_EXISTS;
-				} else if (!localItem.getHash().equals(remoteItem.getHash())) {
+				} else if (!isSameHash(localItem, remoteItem)) {
 					newState = LocalContentState.NEEDS_UPDATE;
 				} else {
 					saveItem = localItem;
@@ -533,6 +559,16 @@ public class ContentFragment extends Fragment
 			return listViewItems;
 		}
 
+		/**
+		 * Local item with pending hash treated as up to date, list regenerated when hash ready
+		 */
+		private boolean isSameHash(ContentItem localItem, ContentItem remoteItem) {
+			String localHash = localItem instanceof DirectoryContentItem
+					? ((DirectoryContentItem) localItem).getCachedHash()
+					: localItem.getHash();
+			return localHash == null || localHash.equals(remoteItem.getHash());
+		}
+
 		@Override
 		protected void onPostExecute(List<ContentListItem> contentListItems) {
 			if (contentListItems != null && adapter != null) {
@@ -23,6 +23,8 @@ public class DownloadProgressFragment extends Fragment implements View.OnClickLi
 	private TextView textView;
 	private TextView textView2;
 
+	private ContentItem currentItem;
+
 	public DownloadProgressFragment() {
 	}
 
@@ -70,6 +72,7 @@ public class DownloadProgressFragment extends Fragment implements View.OnClickLi
 
 	public void downloadStateUpdated(ContentItem item, int downloaded, int max) {
 		startDownload();
+		currentItem = item;
 
 		progressBar.setMax(max);
 		progressBar.setProgress(downloaded);
@@ -82,7 +85,15 @@ public class DownloadProgressFragment extends Fragment implements View.OnClickLi
 		textView2.setText(downloadString);
 	}
 
+	/**
+	 * @return item which progress currently displayed or null
+	 */
+	public ContentItem getCurrentItem() {
+		return currentItem;
+	}
+
 	public void stopDownload() {
+		currentItem = null;
 		if (!isHidden()) {
 			getFragmentManager().beginTransaction()
 					.setCustomAnimations(android.R.anim.fade_in, android.R.anim.fade_out)
@@ -0,0 +1,123 @@
+package org.fruct.oss.mapcontent.content.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Binary delta between two versions of content package.
+ *
+ * Patch layout: magic, format version, length of old and new file, then instructions until END.
+ * COPY contains offset and length of data block of old file, ADD contains length and new data.
+ * New file produced by executing instructions in order, so patch applied in single pass.
+ */
+public class DeltaPatch {
+	static final int MAGIC = 0x4d434450;
+	static final int FORMAT_VERSION = 1;
+
+	static final int OP_END = 0;
+	static final int OP_COPY = 1;
+	static final int OP_ADD = 2;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Reconstruct new file from old file and patch
+	 *
+	 * @param oldFile previous version of file
+	 * @param patch patch stream, read to the end
+	 * @param output destination of new file, not closed
+	 * @throws IOException if patch invalid or doesn't match old file
+	 * @throws InterruptedIOException if thread interrupted
+	 */
+	public static void apply(File oldFile, InputStream patch, OutputStream output) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(patch, BUFFER_SIZE));
+		RandomAccessFile oldData = null;
+		try {
+			if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+				throw new IOException("Unsupported patch format");
+			}
+
+			long oldLength = input.readLong();
+			long newLength = input.readLong();
+
+			oldData = new RandomAccessFile(oldFile, "r");
+			if (oldData.length() != oldLength) {
+				throw new IOException("Patch doesn't match " + oldFile);
+			}
+
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long written = 0;
+			int op;
+			while ((op = input.readUnsignedByte()) != OP_END) {
+				if (op == OP_COPY) {
+					long offset = input.readLong();
+					int length = input.readInt();
+					if (offset < 0 || length < 0 || offset + length > oldLength) {
+						throw new IOException("Patch copies data outside of " + oldFile);
+					}
+
+					oldData.seek(offset);
+					copy(oldData, output, buffer, length);
+					written += length;
+				} else if (op == OP_ADD) {
+					int length = input.readInt();
+					if (length < 0) {
+						throw new IOException("Patch corrupted");
+					}
+
+					copy(input, output, buffer, length);
+					written += length;
+				} else {
+					throw new IOException("Unknown patch instruction " + op);
+				}
+
+				if (written > newLength) {
+					throw new IOException("Patch produces too much data");
+				}
+			}
+
+			if (written != newLength) {
+				throw new IOException("Patch produces " + written + " bytes instead of " + newLength);
+			}
+		} finally {
+			Utils.silentClose(oldData);
+		}
+	}
+
+	private static void copy(RandomAccessFile input, OutputStream output, byte[] buffer, int length) throws IOException {
+		int remaining = length;
+		while (remaining > 0) {
+			checkInterrupted();
+			int read = input.read(buffer, 0, Math.min(buffer.length, remaining));
+			if (read < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+
+			output.write(buffer, 0, read);
+			remaining -= read;
+		}
+	}
+
+	private static void copy(DataInputStream input, OutputStream output, byte[] buffer, int length) throws IOException {
+		int remaining = length;
+		while (remaining > 0) {
+			checkInterrupted();
+			int count = Math.min(buffer.length, remaining);
+			input.readFully(buffer, 0, count);
+			output.write(buffer, 0, count);
+			remaining -= count;
+		}
+	}
+
+	private static void checkInterrupted() throws InterruptedIOException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Patch interrupted");
+		}
+	}
+}
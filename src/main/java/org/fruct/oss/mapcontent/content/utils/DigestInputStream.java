@@ -10,6 +10,7 @@ public class DigestInputStream extends FilterInputStream {
 	private String algorithm;
 	private String expectedHash;
 	private MessageDigest digest;
+	private boolean corrupted;
 
 	public DigestInputStream(InputStream input, String algorithm, String expectedHash) throws NoSuchAlgorithmException {
 		super(input);
@@ -29,11 +30,40 @@ public class DigestInputStream extends FilterInputStream {
 		return c;
 	}
 
+	/**
+	 * Restore digest state from already received part of data.
+	 * Used when stream continues previously interrupted download.
+	 *
+	 * @param prefix stream with already received data
+	 * @param length count of bytes to read from prefix
+	 */
+	public void updatePrefix(InputStream prefix, long length) throws IOException {
+		byte[] buffer = new byte[65536];
+		long remaining = length;
+		while (remaining > 0) {
+			int read = prefix.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (read < 0) {
+				throw new IOException("Unexpected end of already received data");
+			}
+
+			digest.update(buffer, 0, read);
+			remaining -= read;
+		}
+	}
+
+	/**
+	 * @return true if stream was read to the end and hash didn't match expected one
+	 */
+	public boolean isCorrupted() {
+		return corrupted;
+	}
+
 	private void validate() throws IOException {
 		String hash = StrUtil.toHex(digest.digest());
-		if (!hash.equals(expectedHash))
+		if (!hash.equals(expectedHash)) {
+			corrupted = true;
 			throw new IOException("Data corrupted hash " + hash + " expected " + expectedHash);
-
+		}
 	}
 
 	@Override
@@ -141,6 +141,47 @@ public class DirUtil {
 		return ret.toArray(new StorageDirDesc[ret.size()]);
 	}
 
+	/**
+	 * Find mount point of file system containing path
+	 *
+	 * @param path file path
+	 * @return longest mount point from /proc/mounts that contains path, or "/" if mounts can't be read
+	 */
+	public static String getMountPoint(String path) {
+		String canonicalPath;
+		try {
+			canonicalPath = new File(path).getCanonicalPath();
+		} catch (IOException e) {
+			canonicalPath = new File(path).getAbsolutePath();
+		}
+
+		String mountPoint = "/";
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader("/proc/mounts"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ");
+				if (fields.length < 2) {
+					continue;
+				}
+
+				// Spaces in mount points escaped as octal
+				String mountPath = fields[1].replace("\\040", " ");
+				if (mountPath.length() > mountPoint.length()
+						&& (canonicalPath.equals(mountPath) || canonicalPath.startsWith(mountPath + "/"))) {
+					mountPoint = mountPath;
+				}
+			}
+		} catch (IOException e) {
+			log.warn("Can't read mount points");
+		} finally {
+			Utils.silentClose(reader);
+		}
+
+		return mountPoint;
+	}
+
 	public static void deleteDir(File dir) {
 		if (!dir.exists() && !dir.isDirectory())
 			return;
@@ -0,0 +1,210 @@
+package org.fruct.oss.mapcontent.content.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ranks mirrors by measured latency and throughput and protects requests from dead mirrors.
+ *
+ * Mirror is identified by scheme, host and port of url. Each mirror has circuit breaker: after several
+ * consecutive failures mirror skipped for some time, then tried again. Statistics kept in memory only.
+ */
+public class MirrorSelector {
+	private static final Logger log = LoggerFactory.getLogger(MirrorSelector.class);
+
+	// Weight of new measurement in moving averages
+	private static final double ALPHA = 0.3;
+
+	// Transfer size used to compare latency and throughput
+	private static final double REFERENCE_SIZE = 1024 * 1024;
+
+	// Expected cost of mirror without measurements, lower than any real mirror to try it early
+	private static final double UNKNOWN_COST = 0;
+
+	private static final int FAILURE_THRESHOLD = 3;
+	private static final long MIN_OPEN_TIME = 60 * 1000;
+	private static final long MAX_OPEN_TIME = 30 * 60 * 1000;
+
+	// Time after which trial request without reported result considered lost
+	private static final long TRIAL_TIMEOUT = 30 * 1000;
+
+	private static final long MIN_HEDGE_DELAY = 300;
+	private static final long MAX_HEDGE_DELAY = 3000;
+
+	private final Map<String, Mirror> mirrors = new HashMap<>();
+
+	/**
+	 * Order urls from best to worst mirror. Mirrors with open circuit placed last, so they are tried
+	 * only when nothing else left. Urls of equal mirrors keep their original order.
+	 */
+	public synchronized List<String> rank(Collection<String> urls) {
+		final long now = System.currentTimeMillis();
+		List<String> ranked = new ArrayList<>(urls);
+
+		Collections.sort(ranked, new Comparator<String>() {
+			@Override
+			public int compare(String lhs, String rhs) {
+				Mirror left = mirrors.get(getMirrorKey(lhs));
+				Mirror right = mirrors.get(getMirrorKey(rhs));
+
+				boolean leftAvailable = left == null || left.isAvailable(now);
+				boolean rightAvailable = right == null || right.isAvailable(now);
+				if (leftAvailable != rightAvailable) {
+					return leftAvailable ? -1 : 1;
+				}
+
+				return Double.compare(getCost(left), getCost(right));
+			}
+		});
+
+		return ranked;
+	}
+
+	/**
+	 * Check mirror before request. After open time expired, only one caller receives true
+	 * for trial request until its result reported.
+	 *
+	 * @return false if circuit of mirror open and request should fail without network access
+	 */
+	public synchronized boolean isAvailable(String url) {
+		Mirror mirror = mirrors.get(getMirrorKey(url));
+		if (mirror == null) {
+			return true;
+		}
+
+		long now = System.currentTimeMillis();
+		if (!mirror.isAvailable(now)) {
+			return false;
+		}
+
+		if (mirror.failures >= FAILURE_THRESHOLD) {
+			mirror.trialUntil = now + TRIAL_TIMEOUT;
+		}
+		return true;
+	}
+
+	/**
+	 * Time to wait for response of mirror before starting same request on next mirror.
+	 *
+	 * @return 0 for mirror without measurements, so unknown mirrors raced
+	 */
+	public synchronized long getHedgeDelay(String url) {
+		Mirror mirror = mirrors.get(getMirrorKey(url));
+		if (mirror == null || mirror.latency < 0) {
+			return 0;
+		}
+
+		return Math.max(MIN_HEDGE_DELAY, Math.min(MAX_HEDGE_DELAY, (long) (2 * mirror.latency)));
+	}
+
+	/**
+	 * Report successful response
+	 *
+	 * @param latency time from request start to response headers in milliseconds
+	 */
+	public synchronized void reportLatency(String url, long latency) {
+		Mirror mirror = getMirror(url);
+		mirror.latency = mirror.latency < 0 ? latency : mirror.latency * (1 - ALPHA) + latency * ALPHA;
+
+		if (mirror.failures >= FAILURE_THRESHOLD) {
+			log.info("Mirror {} recovered", getMirrorKey(url));
+		}
+		mirror.failures = 0;
+		mirror.openTime = 0;
+		mirror.trialUntil = 0;
+	}
+
+	/**
+	 * Report transferred response body
+	 *
+	 * @param time transfer time in milliseconds
+	 */
+	public synchronized void reportThroughput(String url, long bytes, long time) {
+		if (bytes <= 0 || time <= 0) {
+			return;
+		}
+
+		Mirror mirror = getMirror(url);
+		double throughput = (double) bytes / time;
+		mirror.throughput = mirror.throughput < 0 ? throughput
+				: mirror.throughput * (1 - ALPHA) + throughput * ALPHA;
+	}
+
+	/**
+	 * Report connection error, timeout or error response. Interruptions must not be reported.
+	 */
+	public synchronized void reportFailure(String url) {
+		Mirror mirror = getMirror(url);
+		mirror.failures++;
+		mirror.trialUntil = 0;
+
+		if (mirror.failures >= FAILURE_THRESHOLD) {
+			// Each failed trial doubles time mirror skipped
+			mirror.openTime = mirror.openTime == 0 ? MIN_OPEN_TIME : Math.min(MAX_OPEN_TIME, mirror.openTime * 2);
+			mirror.openUntil = System.currentTimeMillis() + mirror.openTime;
+			log.warn("Mirror {} unavailable for {} ms", getMirrorKey(url), mirror.openTime);
+		}
+	}
+
+	private Mirror getMirror(String url) {
+		String key = getMirrorKey(url);
+		Mirror mirror = mirrors.get(key);
+		if (mirror == null) {
+			mirror = new Mirror();
+			mirrors.put(key, mirror);
+		}
+		return mirror;
+	}
+
+	private static double getCost(Mirror mirror) {
+		if (mirror == null) {
+			return UNKNOWN_COST;
+		} else if (mirror.latency < 0) {
+			// Never responded
+			return mirror.failures > 0 ? Double.MAX_VALUE : UNKNOWN_COST;
+		}
+
+		double cost = mirror.latency;
+		if (mirror.throughput > 0) {
+			cost += REFERENCE_SIZE / mirror.throughput;
+		}
+
+		// Recent failures of responding mirror
+		return cost * (1 + mirror.failures);
+	}
+
+	private static String getMirrorKey(String urlStr) {
+		try {
+			URL url = new URL(urlStr);
+			return url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+		} catch (MalformedURLException e) {
+			return urlStr;
+		}
+	}
+
+	private static class Mirror {
+		// Moving averages, negative if not measured yet. Throughput in bytes per millisecond
+		double latency = -1;
+		double throughput = -1;
+
+		int failures;
+		long openTime;
+		long openUntil;
+		long trialUntil;
+
+		boolean isAvailable(long now) {
+			// After open time expired, single trial request allowed
+			return failures < FAILURE_THRESHOLD || (now >= openUntil && now >= trialUntil);
+		}
+	}
+}
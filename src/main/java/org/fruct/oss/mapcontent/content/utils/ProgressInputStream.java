@@ -22,10 +22,16 @@ public class ProgressInputStream extends FilterInputStream {
 	}
 
 	public ProgressInputStream(InputStream in, int max, int reportInterval, ProgressListener listener) {
+		this(in, 0, max, reportInterval, listener);
+	}
+
+	public ProgressInputStream(InputStream in, int current, int max, int reportInterval, ProgressListener listener) {
 		super(in);
+		this.current = current;
 		this.max = max;
 		this.reportInterval = reportInterval;
 		this.listener = listener;
+		this.oldReportIntervals = current / reportInterval;
 	}
 
 	private void increaseCurrent(int delta) {
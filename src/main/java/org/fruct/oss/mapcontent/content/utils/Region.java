@@ -7,6 +7,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.StringTokenizer;
@@ -14,10 +15,87 @@ import java.util.StringTokenizer;
 public class Region {
 
 	private static final double DELTA = 0.0001;
+	private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
 	private final List<Polygon> polygons;
 
+	private double minLat = Double.POSITIVE_INFINITY, minLon = Double.POSITIVE_INFINITY;
+	private double maxLat = Double.NEGATIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+	private int vertexCount;
+
 	public Region(InputStream input) throws IOException {
-		this.polygons = Polygon.fromPath(input);
+		this(Polygon.fromPath(input));
+	}
+
+	public Region(List<Polygon> polygons) {
+		this.polygons = polygons;
+
+		for (Polygon polygon : polygons) {
+			vertexCount += polygon.size();
+			if (polygon.size() == 0) {
+				continue;
+			}
+
+			minLat = Math.min(minLat, polygon.aLat);
+			minLon = Math.min(minLon, polygon.aLon);
+			maxLat = Math.max(maxLat, polygon.bLat);
+			maxLon = Math.max(maxLon, polygon.bLon);
+		}
+	}
+
+	public double getMinLat() {
+		return minLat;
+	}
+
+	public double getMinLon() {
+		return minLon;
+	}
+
+	public double getMaxLat() {
+		return maxLat;
+	}
+
+	public double getMaxLon() {
+		return maxLon;
+	}
+
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	public List<Polygon> getPolygons() {
+		return polygons;
+	}
+
+	/**
+	 * Read bounding box and vertex count of .poly file without building polygons
+	 */
+	public static Bounds readBounds(InputStream input) throws IOException {
+		Bounds bounds = new Bounds();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+
+		// Skip name
+		reader.readLine();
+
+		String line = reader.readLine();
+		while (!line.startsWith("END")) {
+			line = reader.readLine();
+			while (!line.startsWith("END")) {
+				StringTokenizer tok = new StringTokenizer(line);
+				double lon = Double.parseDouble(tok.nextToken());
+				double lat = Double.parseDouble(tok.nextToken());
+
+				bounds.minLat = Math.min(bounds.minLat, lat);
+				bounds.minLon = Math.min(bounds.minLon, lon);
+				bounds.maxLat = Math.max(bounds.maxLat, lat);
+				bounds.maxLon = Math.max(bounds.maxLon, lon);
+				bounds.vertexCount++;
+				line = reader.readLine();
+			}
+
+			line = reader.readLine();
+		}
+
+		return bounds;
 	}
 
 	public boolean testHit(double rLat, double rLon) {
@@ -35,14 +113,25 @@ public class Region {
 
 		int intersections = 0;
 		for (Polygon polygon : polygons) {
-			for (int i = 0; i < polygon.lats.length - 1; i++) {
-				final double aLat = polygon.lats[i];
-				final double aLon = polygon.lons[i];
-				final double bLat = polygon.lats[i + 1];
-				final double bLon = polygon.lons[i + 1];
-
-				if (testHitLine(rLat, polygon.aLon, rLon, aLat, aLon, bLat, bLon)) {
-					intersections++;
+			// No edge of this polygon can cross ray latitude
+			if (rLat < polygon.aLat || rLat > polygon.bLat) {
+				continue;
+			}
+
+			EdgeIndex edgeIndex = polygon.getEdgeIndex();
+			if (edgeIndex == null) {
+				final int size = polygon.size();
+				for (int i = 0; i < size - 1; i++) {
+					if (testHitEdge(polygon, i, rLat, rLon)) {
+						intersections++;
+					}
+				}
+			} else {
+				final int slab = edgeIndex.getSlab(rLat);
+				for (int j = edgeIndex.slabStarts[slab]; j < edgeIndex.slabStarts[slab + 1]; j++) {
+					if (testHitEdge(polygon, edgeIndex.edges[j], rLat, rLon)) {
+						intersections++;
+					}
 				}
 			}
 		}
@@ -50,6 +139,134 @@ public class Region {
 		return intersections % 2 != 0;
 	}
 
+	/**
+	 * Test whether region intersects rectangle
+	 */
+	public boolean intersects(double minLat, double minLon, double maxLat, double maxLon) {
+		if (maxLat < this.minLat || maxLon < this.minLon || minLat > this.maxLat || minLon > this.maxLon) {
+			return false;
+		}
+
+		// Rectangle contains whole region
+		if (minLat <= this.minLat && minLon <= this.minLon && maxLat >= this.maxLat && maxLon >= this.maxLon) {
+			return true;
+		}
+
+		// Region contains rectangle or its part
+		if (testHit(minLat, minLon) || testHit(minLat, maxLon) || testHit(maxLat, minLon) || testHit(maxLat, maxLon)) {
+			return true;
+		}
+
+		// Otherwise some edge must cross rectangle
+		for (Polygon polygon : polygons) {
+			if (maxLat < polygon.aLat || maxLon < polygon.aLon || minLat > polygon.bLat || minLon > polygon.bLon) {
+				continue;
+			}
+
+			final int size = polygon.size();
+			for (int i = 0; i < size - 1; i++) {
+				if (testSegmentRect(polygon.getLat(i), polygon.getLon(i), polygon.getLat(i + 1), polygon.getLon(i + 1),
+						minLat, minLon, maxLat, maxLon)) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private static boolean testSegmentRect(double aLat, double aLon, double bLat, double bLon,
+										   double minLat, double minLon, double maxLat, double maxLon) {
+		if (Math.max(aLat, bLat) < minLat || Math.min(aLat, bLat) > maxLat
+				|| Math.max(aLon, bLon) < minLon || Math.min(aLon, bLon) > maxLon) {
+			return false;
+		}
+
+		if (aLat >= minLat && aLat <= maxLat && aLon >= minLon && aLon <= maxLon) {
+			return true;
+		}
+
+		// Segment crosses rectangle iff it crosses one of rectangle sides
+		return testSegments(aLat, aLon, bLat, bLon, minLat, minLon, minLat, maxLon)
+				|| testSegments(aLat, aLon, bLat, bLon, maxLat, minLon, maxLat, maxLon)
+				|| testSegments(aLat, aLon, bLat, bLon, minLat, minLon, maxLat, minLon)
+				|| testSegments(aLat, aLon, bLat, bLon, minLat, maxLon, maxLat, maxLon);
+	}
+
+	private static boolean testSegments(double aLat, double aLon, double bLat, double bLon,
+										double cLat, double cLon, double dLat, double dLon) {
+		final double d1 = orientation(cLat, cLon, dLat, dLon, aLat, aLon);
+		final double d2 = orientation(cLat, cLon, dLat, dLon, bLat, bLon);
+		final double d3 = orientation(aLat, aLon, bLat, bLon, cLat, cLon);
+		final double d4 = orientation(aLat, aLon, bLat, bLon, dLat, dLon);
+
+		// Touching counts as intersection
+		return (d1 >= 0 || d2 >= 0) && (d1 <= 0 || d2 <= 0) && (d3 >= 0 || d4 >= 0) && (d3 <= 0 || d4 <= 0);
+	}
+
+	private static double orientation(double aLat, double aLon, double bLat, double bLon, double cLat, double cLon) {
+		return (bLon - aLon) * (cLat - aLat) - (bLat - aLat) * (cLon - aLon);
+	}
+
+	/**
+	 * Approximate distance from point to nearest edge of region.
+	 *
+	 * Uses local equirectangular projection, so result accurate only for distances
+	 * much smaller than Earth radius
+	 *
+	 * @param limit distance that caller not interested to exceed, polygons farther than limit skipped
+	 * @return distance in meters, or limit if all edges farther
+	 */
+	public double distanceToBoundary(double lat, double lon, double limit) {
+		final double lonScale = Math.cos(Math.toRadians(lat));
+		double best = limit;
+
+		for (Polygon polygon : polygons) {
+			final int size = polygon.size();
+			if (size == 0) {
+				continue;
+			}
+
+			// Distance to bounding box is lower bound of distance to any edge
+			double dLat = Math.max(0, Math.max(polygon.aLat - lat, lat - polygon.bLat));
+			double dLon = Math.max(0, Math.max(polygon.aLon - lon, lon - polygon.bLon)) * lonScale;
+			if (Math.hypot(dLat, dLon) * METERS_PER_DEGREE >= best) {
+				continue;
+			}
+
+			for (int i = 0; i < size - 1; i++) {
+				// Project edge to plane with origin at point
+				final double ax = (polygon.getLon(i) - lon) * lonScale;
+				final double ay = polygon.getLat(i) - lat;
+				final double bx = (polygon.getLon(i + 1) - lon) * lonScale;
+				final double by = polygon.getLat(i + 1) - lat;
+
+				final double dx = bx - ax;
+				final double dy = by - ay;
+				final double len2 = dx * dx + dy * dy;
+
+				double t = len2 == 0 ? 0 : -(ax * dx + ay * dy) / len2;
+				t = Math.max(0, Math.min(1, t));
+
+				final double dist = Math.hypot(ax + t * dx, ay + t * dy) * METERS_PER_DEGREE;
+				if (dist < best) {
+					best = dist;
+				}
+			}
+		}
+
+		return best;
+	}
+
+	private boolean testHitEdge(Polygon polygon, int i, double rLat, double rLon) {
+		final double aLat = polygon.getLat(i);
+		final double aLon = polygon.getLon(i);
+		final double bLat = polygon.getLat(i + 1);
+		final double bLon = polygon.getLon(i + 1);
+
+		return testHitLine(rLat, polygon.aLon, rLon, aLat, aLon, bLat, bLon);
+	}
+
 	private boolean testHitLine(double rLat, double rLon0, double rLon1, double aLat, double aLon, double bLat, double bLon) {
 		if (aLat < rLat && bLat < rLat || aLat > rLat && bLat > rLat)
 			return false;
@@ -71,40 +288,43 @@ public class Region {
 		return (r > 0 && r < rLon1 - rLon0);
 	}
 
-	public static class Polygon {
-		public double[] lats;
-		public double[] lons;
+	public static class Bounds {
+		public double minLat = Double.POSITIVE_INFINITY, minLon = Double.POSITIVE_INFINITY;
+		public double maxLat = Double.NEGATIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+		public int vertexCount;
+	}
+
+	/**
+	 * Closed polygon ring. Vertices accessed by index, storage depends on implementation
+	 */
+	public static abstract class Polygon {
+		// Polygons with fewer vertices tested by plain scan of all edges
+		private static final int EDGE_INDEX_THRESHOLD = 64;
 
 		public double aLat, aLon, bLat, bLon;
 
-		private Polygon(double[] lats, double[] lons) {
-			this.lats = lats;
-			this.lons = lons;
-			// Calculate AABB
-			if (lats.length > 0) {
-				aLat = bLat = lats[0];
-				aLon = bLon = lons[0];
+		private volatile EdgeIndex edgeIndex;
 
-				for (int i = 1; i < lats.length; i++) {
-					if (lats[i] < aLat) {
-						aLat = lats[i];
-					}
+		public abstract int size();
 
-					if (lats[i] > bLat) {
-						bLat = lats[i];
-					}
-				}
+		public abstract double getLat(int i);
 
-				for (int i = 1; i < lons.length; i++) {
-					if (lons[i] < aLon) {
-						aLon = lons[i];
-					}
+		public abstract double getLon(int i);
 
-					if (lons[i] > bLon) {
-						bLon = lons[i];
-					}
-				}
+		/**
+		 * @return edge index built on first use or null for small polygons
+		 */
+		EdgeIndex getEdgeIndex() {
+			if (size() < EDGE_INDEX_THRESHOLD) {
+				return null;
 			}
+
+			// Concurrent builds produce equal immutable indexes, so no locking needed
+			EdgeIndex edgeIndex = this.edgeIndex;
+			if (edgeIndex == null) {
+				this.edgeIndex = edgeIndex = new EdgeIndex(this);
+			}
+			return edgeIndex;
 		}
 
 		public boolean testHitAABB(double rLat, double rLon) {
@@ -170,8 +390,168 @@ public class Region {
 				//lats[lats.length - 1] = this.lats.get(0);
 				//lons[lons.length - 1] = this.lons.get(0);
 
-				return new Polygon(lats, lons);
+				return new ArrayPolygon(lats, lons);
 			}
 		}
 	}
+
+	/**
+	 * Edges of polygon bucketed by latitude slabs.
+	 *
+	 * Edge stored in every slab its latitude range overlaps, so slab containing ray latitude holds
+	 * all edges that can cross the ray. Edges stored in CSR form: edges of slab s are
+	 * edges[slabStarts[s]] until edges[slabStarts[s + 1]].
+	 */
+	static class EdgeIndex {
+		private static final int EDGES_PER_SLAB = 8;
+		private static final int MAX_SLABS = 1024;
+
+		private final double minLat;
+		private final double slabHeight;
+		private final int slabCount;
+
+		final int[] slabStarts;
+		final int[] edges;
+
+		EdgeIndex(Polygon polygon) {
+			final int edgeCount = polygon.size() - 1;
+			minLat = polygon.aLat;
+			slabCount = Math.max(1, Math.min(MAX_SLABS, edgeCount / EDGES_PER_SLAB));
+			slabHeight = (polygon.bLat - polygon.aLat) / slabCount;
+
+			// Count edges per slab, then fill
+			slabStarts = new int[slabCount + 1];
+			for (int i = 0; i < edgeCount; i++) {
+				int first = getFirstSlab(polygon, i);
+				int last = getLastSlab(polygon, i);
+				for (int s = first; s <= last; s++) {
+					slabStarts[s + 1]++;
+				}
+			}
+
+			for (int s = 0; s < slabCount; s++) {
+				slabStarts[s + 1] += slabStarts[s];
+			}
+
+			edges = new int[slabStarts[slabCount]];
+			int[] fill = new int[slabCount];
+			for (int i = 0; i < edgeCount; i++) {
+				int first = getFirstSlab(polygon, i);
+				int last = getLastSlab(polygon, i);
+				for (int s = first; s <= last; s++) {
+					edges[slabStarts[s] + fill[s]++] = i;
+				}
+			}
+		}
+
+		/**
+		 * Slab of latitude. Monotonic in latitude, so latitude inside edge range always maps to
+		 * slab between slabs of edge endpoints
+		 */
+		int getSlab(double lat) {
+			if (slabHeight <= 0) {
+				return 0;
+			}
+
+			int slab = (int) ((lat - minLat) / slabHeight);
+			return Math.max(0, Math.min(slabCount - 1, slab));
+		}
+
+		private int getFirstSlab(Polygon polygon, int i) {
+			return getSlab(Math.min(polygon.getLat(i), polygon.getLat(i + 1)));
+		}
+
+		private int getLastSlab(Polygon polygon, int i) {
+			return getSlab(Math.max(polygon.getLat(i), polygon.getLat(i + 1)));
+		}
+	}
+
+	/**
+	 * Polygon backed by heap arrays, used for parsed .poly files
+	 */
+	public static class ArrayPolygon extends Polygon {
+		private final double[] lats;
+		private final double[] lons;
+
+		public ArrayPolygon(double[] lats, double[] lons) {
+			this.lats = lats;
+			this.lons = lons;
+			// Calculate AABB
+			if (lats.length > 0) {
+				aLat = bLat = lats[0];
+				aLon = bLon = lons[0];
+
+				for (int i = 1; i < lats.length; i++) {
+					if (lats[i] < aLat) {
+						aLat = lats[i];
+					}
+
+					if (lats[i] > bLat) {
+						bLat = lats[i];
+					}
+				}
+
+				for (int i = 1; i < lons.length; i++) {
+					if (lons[i] < aLon) {
+						aLon = lons[i];
+					}
+
+					if (lons[i] > bLon) {
+						bLon = lons[i];
+					}
+				}
+			}
+		}
+
+		@Override
+		public int size() {
+			return lats.length;
+		}
+
+		@Override
+		public double getLat(int i) {
+			return lats[i];
+		}
+
+		@Override
+		public double getLon(int i) {
+			return lons[i];
+		}
+	}
+
+	/**
+	 * Polygon backed by fixed-point coordinates of memory-mapped region pack.
+	 *
+	 * Buffer holds interleaved lat, lon pairs scaled by {@link #FIXED_POINT_SCALE}
+	 */
+	public static class PackedPolygon extends Polygon {
+		public static final double FIXED_POINT_SCALE = 1e7;
+
+		private final IntBuffer coords;
+		private final int size;
+
+		public PackedPolygon(IntBuffer coords, int size, double aLat, double aLon, double bLat, double bLon) {
+			this.coords = coords;
+			this.size = size;
+			this.aLat = aLat;
+			this.aLon = aLon;
+			this.bLat = bLat;
+			this.bLon = bLon;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public double getLat(int i) {
+			return coords.get(2 * i) / FIXED_POINT_SCALE;
+		}
+
+		@Override
+		public double getLon(int i) {
+			return coords.get(2 * i + 1) / FIXED_POINT_SCALE;
+		}
+	}
 }
@@ -0,0 +1,129 @@
+package org.fruct.oss.mapcontent.content.utils;
+
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Region archives extracted into region cache directory together with their HTTP validators.
+ *
+ * State file replaced atomically, so it always lists only completely extracted archive directories.
+ */
+class RegionArchives {
+	private static final Logger log = LoggerFactory.getLogger(RegionArchives.class);
+
+	private final Map<String, Archive> archives = new LinkedHashMap<>();
+
+	@Nullable
+	Archive get(String url) {
+		return archives.get(url);
+	}
+
+	void put(Archive archive) {
+		archives.put(archive.url, archive);
+	}
+
+	Collection<Archive> getArchives() {
+		return Collections.unmodifiableCollection(archives.values());
+	}
+
+	void save(File file) throws IOException {
+		JSONObject json = new JSONObject();
+		try {
+			JSONArray archivesJson = new JSONArray();
+			for (Archive archive : archives.values()) {
+				JSONObject archiveJson = new JSONObject();
+				archiveJson.put("url", archive.url);
+				archiveJson.put("dir", archive.dirName);
+				if (archive.etag != null) {
+					archiveJson.put("etag", archive.etag);
+				}
+				archiveJson.put("last-modified", archive.lastModified);
+				archivesJson.put(archiveJson);
+			}
+			json.put("archives", archivesJson);
+		} catch (JSONException e) {
+			throw new IOException("Can't serialize region archives", e);
+		}
+
+		File tmpFile = new File(file.getPath() + ".tmp");
+		FileOutputStream output = null;
+		try {
+			output = new FileOutputStream(tmpFile);
+			output.write(json.toString().getBytes("UTF-8"));
+			output.getFD().sync();
+		} finally {
+			Utils.silentClose(output);
+		}
+
+		if (!tmpFile.renameTo(file)) {
+			tmpFile.delete();
+			throw new IOException("Can't replace region archives state " + file);
+		}
+	}
+
+	/**
+	 * @return archives or null if state file doesn't exist or invalid
+	 */
+	@Nullable
+	static RegionArchives load(File file) {
+		if (!file.isFile()) {
+			return null;
+		}
+
+		FileReader reader = null;
+		try {
+			reader = new FileReader(file);
+			JSONObject json = new JSONObject(StrUtil.readerToString(reader));
+
+			RegionArchives regionArchives = new RegionArchives();
+			JSONArray archivesJson = json.getJSONArray("archives");
+			for (int i = 0; i < archivesJson.length(); i++) {
+				JSONObject archiveJson = archivesJson.getJSONObject(i);
+				regionArchives.put(new Archive(archiveJson.getString("url"), archiveJson.getString("dir"),
+						archiveJson.optString("etag", null), archiveJson.optLong("last-modified")));
+			}
+
+			return regionArchives;
+		} catch (IOException e) {
+			log.warn("Can't read region archives state {}", file);
+			return null;
+		} catch (JSONException e) {
+			log.warn("Region archives state {} invalid", file);
+			return null;
+		} finally {
+			Utils.silentClose(reader);
+		}
+	}
+
+	static class Archive {
+		final String url;
+
+		// Directory inside region cache directory
+		final String dirName;
+
+		// Validators of downloaded archive, etag may be null and lastModified may be 0
+		final String etag;
+		final long lastModified;
+
+		Archive(String url, String dirName, String etag, long lastModified) {
+			this.url = url;
+			this.dirName = dirName;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package org.fruct.oss.mapcontent.content.utils;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.location.Location;
@@ -12,6 +13,7 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
@@ -19,98 +21,437 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Regions loaded from region cache directory and additional directory.
+ *
+ * Region cache directory contains one subdirectory per region archive, listed in archives state file.
+ * Archive subdirectory holds regions.json with compiled pack and index, polygon files aren't extracted.
+ * Packs and indexes of other directories compiled in background after start and when cache refreshed,
+ * until then regions read from .poly files and every region of such directory is candidate of any query.
+ *
+ * Readers use immutable snapshot of region descriptors and indexes without locking, snapshot replaced
+ * atomically when cache updated. Each region polygon loaded at most once, concurrent requests of
+ * the same region wait for single load.
+ */
 public class RegionCache {
 	private static final Logger log = LoggerFactory.getLogger(RegionCache.class);
 
+	private static final String INDEX_FILE = "regions.index";
+	private static final String PACK_FILE = "regions.pack";
+	private static final String STATE_FILE = "archives.state";
+	private static final String REGIONS_FILE = "regions.json";
+	private static final String STAGING_SUFFIX = ".staging";
+
+	private static final int MAX_FETCH_THREADS = 3;
+
+	// Limit of total vertex count of cached polygons
+	private static final int MAX_CACHE_WEIGHT = 500000;
+
 	private final File cacheDir;
-	private File additionalDir;
+	private volatile File additionalDir;
 
-	private final Map<String, RegionDesc> cachedFiles = new HashMap<>();
-	private final Map<String, Region> regionsCache = new HashMap<>();
+	private volatile Snapshot snapshot = new Snapshot(Collections.<String, RegionDesc>emptyMap(),
+			Collections.<File, Directory>emptyMap());
+
+	// Loads in progress and failed loads, keyed by descriptor identity
+	private final ConcurrentMap<RegionDesc, FutureTask<Region>> loadingTasks = new ConcurrentHashMap<>();
+
+	// Access-ordered, so iteration starts from least recently used region. Guarded by cacheLock
+	private final Object cacheLock = new Object();
+	private final LinkedHashMap<String, CachedRegion> regionsCache = new LinkedHashMap<>(16, 0.75f, true);
+	private int cacheWeight;
+	private int cacheHits;
+	private int cacheMisses;
 
 	private Context context;
 
+	/**
+	 * Create cache from existing files. Missing packs and indexes compiled in background,
+	 * so constructor can be called from main thread
+	 */
 	public RegionCache(Context context, File cacheDir) {
 		this.context = context.getApplicationContext();
 		this.cacheDir = cacheDir;
 		cacheDir.mkdirs();
 
-		loadCachedFiles(cacheDir);
+		loadCachedFiles(false);
+		compileInBackground();
 	}
 
-	public synchronized RegionDesc getRegionDesc(String regionId) {
-		return cachedFiles.get(regionId);
+	private void compileInBackground() {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (RegionCache.this) {
+					loadCachedFiles(true);
+				}
+			}
+		}, "region-cache-compiler");
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public RegionDesc getRegionDesc(String regionId) {
+		return snapshot.regionDescs.get(regionId);
 	}
 
 	@Nullable
-	public synchronized Region getRegion(String regionId) {
-		Region region = regionsCache.get(regionId);
-		if (region != null) {
-			return region;
+	public Region getRegion(String regionId) {
+		RegionDesc regionDesc = snapshot.regionDescs.get(regionId);
+
+		synchronized (cacheLock) {
+			CachedRegion cachedRegion = regionsCache.get(regionId);
+			// Regions put by putRegion have no descriptor and valid for any snapshot
+			if (cachedRegion != null && (cachedRegion.regionDesc == null || cachedRegion.regionDesc == regionDesc)) {
+				cacheHits++;
+				return cachedRegion.region;
+			}
+			cacheMisses++;
 		}
 
-		RegionDesc regionDesc = cachedFiles.get(regionId);
 		if (regionDesc == null) {
 			return null;
 		}
 
-		FileInputStream input = null;
+		return loadRegion(regionDesc);
+	}
+
+	private Region loadRegion(final RegionDesc regionDesc) {
+		FutureTask<Region> task = loadingTasks.get(regionDesc);
+		if (task == null) {
+			FutureTask<Region> newTask = new FutureTask<>(new Callable<Region>() {
+				@Override
+				public Region call() throws Exception {
+					return regionDesc.pack != null
+							? regionDesc.pack.getRegion(regionDesc.regionId)
+							: readRegion(regionDesc);
+				}
+			});
+
+			task = loadingTasks.putIfAbsent(regionDesc, newTask);
+			if (task == null) {
+				task = newTask;
+				task.run();
+			}
+		}
+
 		try {
-			input = new FileInputStream(regionDesc.file);
-			region = new Region(input);
-			regionsCache.put(regionId, region);
+			Region region = task.get();
+			synchronized (cacheLock) {
+				if (snapshot.regionDescs.get(regionDesc.regionId) == regionDesc) {
+					putCachedRegion(regionDesc.regionId, new CachedRegion(regionDesc, region));
+				}
+			}
+
+			// Failed tasks stay in map, so broken region not parsed again
+			loadingTasks.remove(regionDesc, task);
 			return region;
-		} catch (java.io.IOException e) {
-			cachedFiles.remove(regionId);
+		} catch (ExecutionException e) {
+			log.warn("Can't load region {}", regionDesc.regionId, e.getCause());
 			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	private Region readRegion(RegionDesc regionDesc) throws IOException {
+		FileInputStream input = null;
+		try {
+			input = new FileInputStream(regionDesc.file);
+			return new Region(input);
 		} finally {
 			Utils.silentClose(input);
 		}
 	}
 
-	public synchronized void putRegion(String regionId, Region region) {
-		regionsCache.put(regionId, region);
+	public void putRegion(String regionId, Region region) {
+		synchronized (cacheLock) {
+			putCachedRegion(regionId, new CachedRegion(null, region));
+		}
+	}
+
+	public int getCacheHits() {
+		synchronized (cacheLock) {
+			return cacheHits;
+		}
+	}
+
+	public int getCacheMisses() {
+		synchronized (cacheLock) {
+			return cacheMisses;
+		}
+	}
+
+	/**
+	 * Release cached polygons in response to {@link android.content.ComponentCallbacks2#onTrimMemory(int)}
+	 */
+	public void trimMemory(int level) {
+		synchronized (cacheLock) {
+			if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+				clearCachedRegions();
+			} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+				evictCachedRegions(MAX_CACHE_WEIGHT / 2);
+			}
+			log.debug("Region cache trimmed, level {}, weight {}, hits {}, misses {}",
+					level, cacheWeight, cacheHits, cacheMisses);
+		}
+	}
+
+	private void putCachedRegion(String regionId, CachedRegion cachedRegion) {
+		CachedRegion oldRegion = regionsCache.put(regionId, cachedRegion);
+		if (oldRegion != null) {
+			cacheWeight -= oldRegion.region.getVertexCount();
+		}
+		int vertexCount = cachedRegion.region.getVertexCount();
+		cacheWeight += vertexCount;
+
+		// Region just added kept even if it alone exceeds limit
+		evictCachedRegions(Math.max(MAX_CACHE_WEIGHT, vertexCount));
 	}
 
-	public synchronized void updateDiskCache(String[] cacheUrls) throws IOException {
+	private void evictCachedRegions(int maxWeight) {
+		Iterator<CachedRegion> iterator = regionsCache.values().iterator();
+		while (cacheWeight > maxWeight && iterator.hasNext()) {
+			cacheWeight -= iterator.next().region.getVertexCount();
+			iterator.remove();
+		}
+	}
+
+	private void clearCachedRegions() {
+		regionsCache.clear();
+		cacheWeight = 0;
+	}
+
+	/**
+	 * Bring region cache in line with region archives of content catalog.
+	 *
+	 * Archives requested conditionally and in parallel. Changed archive extracted into staging
+	 * directory which renamed into place when complete, then new archives state replaces old one
+	 * with single rename. Directories of unchanged archives kept together with their packs, indexes
+	 * and loaded polygons. Archive that can't be updated stays in its previous version.
+	 *
+	 * @param cacheUrls urls of all region archives of catalog
+	 */
+	public synchronized void updateDiskCache(Collection<String> cacheUrls) throws IOException {
 		if (!cacheDir.isDirectory()) {
 			return;
 		}
 
-		clearDiskCache();
+		File stateFile = new File(cacheDir, STATE_FILE);
+		RegionArchives oldArchives = RegionArchives.load(stateFile);
+		if (oldArchives == null) {
+			// Cache written by older version has no validators, every archive fetched again
+			oldArchives = new RegionArchives();
+		}
+
+		RegionArchives newArchives = new RegionArchives();
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(MAX_FETCH_THREADS, cacheUrls.size())));
+		try {
+			Map<String, Future<RegionArchives.Archive>> fetches = new LinkedHashMap<>();
+			for (final String cacheUrl : cacheUrls) {
+				final RegionArchives.Archive oldArchive = oldArchives.get(cacheUrl);
+				fetches.put(cacheUrl, executor.submit(new Callable<RegionArchives.Archive>() {
+					@Override
+					public RegionArchives.Archive call() throws Exception {
+						return fetchArchive(cacheUrl, oldArchive);
+					}
+				}));
+			}
 
-		File tmpFile = new File(cacheDir, "zipFile.zip");
+			for (Map.Entry<String, Future<RegionArchives.Archive>> entry : fetches.entrySet()) {
+				try {
+					newArchives.put(entry.getValue().get());
+				} catch (ExecutionException e) {
+					log.warn("Can't update region archive {}", entry.getKey(), e.getCause());
+					RegionArchives.Archive oldArchive = oldArchives.get(entry.getKey());
+					if (oldArchive != null) {
+						newArchives.put(oldArchive);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Region cache update interrupted");
+		} finally {
+			executor.shutdownNow();
+		}
 
-		for (String cacheUrl : cacheUrls) {
-			InputStream inputStream = null;
-			FileOutputStream outputStream = null;
-			try {
-				inputStream = UrlUtil.getInputStream(cacheUrl);
-				outputStream = new FileOutputStream(tmpFile);
-				StrUtil.copyStream(inputStream, outputStream);
+		newArchives.save(stateFile);
+		loadCachedFiles(true);
+		deleteUnusedFiles(newArchives);
+	}
+
+	/**
+	 * Download archive if it changed since previous download
+	 *
+	 * @param oldArchive previous version of archive or null
+	 * @return archive extracted into its own directory or oldArchive if it not modified
+	 */
+	private RegionArchives.Archive fetchArchive(String cacheUrl, @Nullable RegionArchives.Archive oldArchive)
+			throws IOException {
+		boolean isPresent = oldArchive != null && new File(cacheDir, oldArchive.dirName).isDirectory();
+		HttpURLConnection conn = UrlUtil.getConditionalConnection(cacheUrl,
+				isPresent ? oldArchive.etag : null, isPresent ? oldArchive.lastModified : 0);
+
+		File stagingDir = null;
+		InputStream input = null;
+		try {
+			if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				if (!isPresent) {
+					throw new IOException(cacheUrl + " returned unexpected code 304");
+				}
+				log.debug("Region archive {} not modified", cacheUrl);
+				return oldArchive;
+			}
+
+			String dirName = String.format(Locale.US, "%08x-%d", cacheUrl.hashCode(), System.currentTimeMillis());
+			stagingDir = new File(cacheDir, dirName + STAGING_SUFFIX);
+			if (!stagingDir.mkdir()) {
+				throw new IOException("Can't create directory " + stagingDir);
+			}
+
+			input = conn.getInputStream();
+			ingestArchive(input, stagingDir);
+
+			File archiveDir = new File(cacheDir, dirName);
+			if (!stagingDir.renameTo(archiveDir)) {
+				throw new IOException("Can't rename " + stagingDir);
+			}
+			stagingDir = null;
+
+			log.info("Region archive {} updated", cacheUrl);
+			return new RegionArchives.Archive(cacheUrl, dirName, conn.getHeaderField("ETag"),
+					conn.getLastModified());
+		} finally {
+			Utils.silentClose(input);
+			conn.disconnect();
+
+			if (stagingDir != null) {
+				DirUtil.deleteDir(stagingDir);
+			}
+		}
+	}
 
-				DirUtil.unzip(tmpFile, cacheDir);
+	/**
+	 * Read region archive while it downloads. regions.json stored as is, polygons compiled straight into
+	 * region pack and index built from pack bounds, so polygon files never written to disk.
+	 */
+	private void ingestArchive(InputStream input, File dir) throws IOException {
+		File regionsFile = new File(dir, REGIONS_FILE);
+		boolean hasRegionsFile = false;
+
+		ZipInputStream zipInput = new ZipInputStream(new BufferedInputStream(input));
+		RegionPack.Writer writer = new RegionPack.Writer(new File(dir, PACK_FILE));
+		try {
+			ZipEntry zipEntry;
+			while ((zipEntry = zipInput.getNextEntry()) != null) {
+				String name = zipEntry.getName();
+				if (zipEntry.isDirectory()) {
+					continue;
+				}
 
-				// Rename regions.json to unique name
-				File regionsZipFile = new File(cacheDir, "regions.json");
-				if (regionsZipFile.exists()) {
-					if (!regionsZipFile.renameTo(new File(cacheDir, cacheUrl.hashCode() + ".json"))) {
-						throw new IOException("Can't rename regions.json file");
+				if (name.equals(REGIONS_FILE)) {
+					FileOutputStream output = null;
+					try {
+						output = new FileOutputStream(regionsFile);
+						StrUtil.copyStream(zipInput, output);
+					} finally {
+						Utils.silentClose(output);
+					}
+					hasRegionsFile = true;
+				} else if (name.endsWith(".poly")) {
+					Region region;
+					try {
+						region = new Region(zipInput);
+					} catch (RuntimeException e) {
+						log.warn("Can't read region file {}", name);
+						continue;
 					}
+
+					// Region id unknown until regions.json read, so file path used instead
+					writer.add(new File(dir, name).getPath(), region);
+				}
+			}
+
+			if (!hasRegionsFile) {
+				throw new IOException("Region archive has no " + REGIONS_FILE);
+			}
+
+			List<RegionDesc> regionDescs = new ArrayList<>();
+			loadRegionsFile(dir, regionsFile, regionDescs);
+
+			Map<String, String> regionIds = new HashMap<>();
+			for (RegionDesc regionDesc : regionDescs) {
+				regionIds.put(regionDesc.file.getPath(), regionDesc.regionId);
+			}
+			writer.renameRegions(regionIds);
+
+			RegionIndex.Builder builder = new RegionIndex.Builder();
+			for (RegionDesc regionDesc : regionDescs) {
+				Region.Bounds bounds = writer.getBounds(regionDesc.regionId);
+				if (bounds != null) {
+					builder.add(regionDesc.regionId, bounds.minLat, bounds.minLon, bounds.maxLat, bounds.maxLon,
+							bounds.vertexCount, regionDesc.adminLevel);
 				}
-			} finally {
-				Utils.silentClose(inputStream);
-				Utils.silentClose(outputStream);
 			}
+
+			String stamp = createStamp(new File[] {regionsFile});
+			writer.finish(stamp);
+			builder.build().write(new File(dir, INDEX_FILE), stamp);
+		} catch (IOException | RuntimeException e) {
+			writer.abort();
+			throw e;
+		}
+	}
+
+	/**
+	 * Delete replaced archive directories, unfinished staging directories and files of old cache layout
+	 */
+	private void deleteUnusedFiles(RegionArchives archives) {
+		Set<String> usedNames = new HashSet<>();
+		usedNames.add(STATE_FILE);
+		for (RegionArchives.Archive archive : archives.getArchives()) {
+			usedNames.add(archive.dirName);
 		}
 
-		loadCachedFiles();
+		for (File file : cacheDir.listFiles()) {
+			if (usedNames.contains(file.getName())) {
+				continue;
+			}
+
+			if (file.isDirectory()) {
+				DirUtil.deleteDir(file);
+			} else {
+				file.delete();
+			}
+		}
 	}
 
 	/**
@@ -118,45 +459,168 @@ public class RegionCache {
 	 * @param location location
 	 * @return array of regions for this location
 	 */
-	public synchronized List<RegionDesc> findRegions(Location location) {
+	public List<RegionDesc> findRegions(Location location) {
+		Snapshot snapshot = this.snapshot;
 		List<RegionDesc> foundRegions = new ArrayList<>();
-		for (RegionDesc regionDesc : cachedFiles.values()) {
-			Region region = getRegion(regionDesc.regionId);
+		for (String regionId : findCandidateRegions(snapshot, location.getLatitude(), location.getLongitude(),
+				location.getLatitude(), location.getLongitude())) {
+			Region region = getRegion(regionId);
 			if (region != null && region.testHit(location.getLatitude(), location.getLongitude())) {
-				foundRegions.add(regionDesc);
+				foundRegions.add(snapshot.regionDescs.get(regionId));
 			}
 		}
 		return foundRegions;
 	}
 
-	public synchronized long getLastRefreshTime() {
+	/**
+	 * Find all regions intersecting rectangle
+	 * @return regions which polygons intersect rectangle
+	 */
+	public List<RegionDesc> findRegions(double minLat, double minLon, double maxLat, double maxLon) {
+		Snapshot snapshot = this.snapshot;
+		List<RegionDesc> foundRegions = new ArrayList<>();
+		for (String regionId : findCandidateRegions(snapshot, minLat, minLon, maxLat, maxLon)) {
+			Region region = getRegion(regionId);
+			if (region != null && region.intersects(minLat, minLon, maxLat, maxLon)) {
+				foundRegions.add(snapshot.regionDescs.get(regionId));
+			}
+		}
+		return foundRegions;
+	}
+
+	/**
+	 * Find regions which bounding box contains point. Polygons not loaded.
+	 *
+	 * Regions that not present in region cache (see {@link #getRegionDesc(String)}) never returned,
+	 * caller must test them separately
+	 *
+	 * @return region ids
+	 */
+	public Set<String> findCandidateRegions(double lat, double lon) {
+		return findCandidateRegions(snapshot, lat, lon, lat, lon);
+	}
+
+	/**
+	 * Find regions which bounding box intersects given box. Polygons not loaded.
+	 *
+	 * @return region ids
+	 * @see #findCandidateRegions(double, double)
+	 */
+	public Set<String> findCandidateRegions(double minLat, double minLon, double maxLat, double maxLon) {
+		return findCandidateRegions(snapshot, minLat, minLon, maxLat, maxLon);
+	}
+
+	private Set<String> findCandidateRegions(Snapshot snapshot, double minLat, double minLon,
+											 double maxLat, double maxLon) {
+		Set<String> candidates = new HashSet<>();
+		for (Directory directory : snapshot.directories.values()) {
+			if (directory.index == null) {
+				// Bounding boxes unknown until index built
+				for (RegionDesc regionDesc : directory.regionDescs) {
+					if (snapshot.regionDescs.get(regionDesc.regionId) == regionDesc) {
+						candidates.add(regionDesc.regionId);
+					}
+				}
+				continue;
+			}
+
+			for (String regionId : directory.index.query(minLat, minLon, maxLat, maxLon)) {
+				if (snapshot.regionDescs.containsKey(regionId)) {
+					candidates.add(regionId);
+				}
+			}
+		}
+		return candidates;
+	}
+
+	public long getLastRefreshTime() {
 		return Math.max(cacheDir.lastModified(), additionalDir != null ? additionalDir.lastModified() : 0);
 	}
 
 	public synchronized void setAdditionalRegions(File addRegionsDir) {
+		if (addRegionsDir.equals(additionalDir)) {
+			return;
+		}
+
 		this.additionalDir = addRegionsDir;
-		loadCachedFiles(additionalDir);
+		loadCachedFiles(true);
 	}
 
-	private void clearDiskCache() {
-		// Delete *.poly and *.zip files
-		for (File file : cacheDir.listFiles()) {
-			file.delete();
+	/**
+	 * Load all directories into new snapshot and publish it.
+	 *
+	 * Directories not changed since previous load reused with the same descriptors,
+	 * so their loaded polygons stay cached
+	 *
+	 * @param isBuildAllowed compile missing packs and indexes, otherwise only existing ones read
+	 */
+	private void loadCachedFiles(boolean isBuildAllowed) {
+		Snapshot oldSnapshot = snapshot;
+
+		List<File> dirs = getArchiveDirs();
+		if (additionalDir != null) {
+			dirs.add(additionalDir);
+		}
+
+		Map<String, RegionDesc> regionDescs = new HashMap<>();
+		Map<File, Directory> directories = new LinkedHashMap<>();
+		for (File dir : dirs) {
+			Directory directory = loadDirectory(dir, oldSnapshot.directories.get(dir), isBuildAllowed);
+			if (directory == null) {
+				continue;
+			}
+
+			directories.put(dir, directory);
+			for (RegionDesc regionDesc : directory.regionDescs) {
+				regionDescs.put(regionDesc.regionId, regionDesc);
+			}
+		}
+
+		Snapshot newSnapshot = new Snapshot(Collections.unmodifiableMap(regionDescs),
+				Collections.unmodifiableMap(directories));
+		snapshot = newSnapshot;
+		loadingTasks.clear();
+
+		// Drop polygons of replaced descriptors
+		synchronized (cacheLock) {
+			Iterator<Map.Entry<String, CachedRegion>> iterator = regionsCache.entrySet().iterator();
+			while (iterator.hasNext()) {
+				CachedRegion cachedRegion = iterator.next().getValue();
+				if (cachedRegion.regionDesc != null
+						&& newSnapshot.regionDescs.get(cachedRegion.regionDesc.regionId) != cachedRegion.regionDesc) {
+					cacheWeight -= cachedRegion.region.getVertexCount();
+					iterator.remove();
+				}
+			}
 		}
-		regionsCache.clear();
 	}
 
-	private void loadCachedFiles() {
-		cachedFiles.clear();
-		loadCachedFiles(cacheDir);
-		if (additionalDir != null) {
-			loadCachedFiles(additionalDir);
+	private List<File> getArchiveDirs() {
+		List<File> dirs = new ArrayList<>();
+
+		RegionArchives archives = RegionArchives.load(new File(cacheDir, STATE_FILE));
+		if (archives == null) {
+			// Flat layout of older versions or empty cache
+			dirs.add(cacheDir);
+			return dirs;
 		}
+
+		for (RegionArchives.Archive archive : archives.getArchives()) {
+			dirs.add(new File(cacheDir, archive.dirName));
+		}
+		return dirs;
 	}
 
-	private void loadCachedFiles(File cacheDir) {
+	/**
+	 * Load region descriptors and index of single directory
+	 *
+	 * @param oldDirectory previously loaded state of the same directory or null
+	 * @return oldDirectory if directory not changed, null if directory doesn't exist
+	 */
+	@Nullable
+	private Directory loadDirectory(File cacheDir, @Nullable Directory oldDirectory, boolean isBuildAllowed) {
 		if (!cacheDir.isDirectory()) {
-			return;
+			return null;
 		}
 
 		FileFilter filter = new FileFilter() {
@@ -166,12 +630,161 @@ public class RegionCache {
 			}
 		};
 
-		for (File file : cacheDir.listFiles(filter)) {
-			loadRegionsFile(cacheDir, file);
+		File[] jsonFiles = cacheDir.listFiles(filter);
+		String stamp = createStamp(jsonFiles);
+		if (oldDirectory != null && oldDirectory.stamp.equals(stamp)
+				&& (oldDirectory.isBuilt || !isBuildAllowed)) {
+			return oldDirectory;
+		}
+
+		List<RegionDesc> regionDescs = new ArrayList<>();
+		for (File file : jsonFiles) {
+			loadRegionsFile(cacheDir, file, regionDescs);
+		}
+
+		// Region available either from pack or from its .poly file
+		RegionPack pack = loadPack(cacheDir, stamp, regionDescs, isBuildAllowed);
+		Iterator<RegionDesc> iterator = regionDescs.iterator();
+		while (iterator.hasNext()) {
+			RegionDesc regionDesc = iterator.next();
+			if (pack != null && pack.contains(regionDesc.regionId)) {
+				regionDesc.pack = pack;
+			} else if (!regionDesc.file.exists()) {
+				iterator.remove();
+			}
 		}
+
+		RegionIndex index = loadIndex(cacheDir, stamp, regionDescs, pack, isBuildAllowed);
+		if (index != null) {
+			applyIndex(index, regionDescs);
+		}
+		return new Directory(stamp, Collections.unmodifiableList(regionDescs), index, isBuildAllowed);
 	}
 
-	private void loadRegionsFile(File cacheDir, File file) {
+	/**
+	 * Map compiled region pack of directory or compile it from .poly files
+	 *
+	 * @return pack or null if pack not compiled or can't be written, .poly files used directly in this case
+	 */
+	private RegionPack loadPack(File dir, String stamp, List<RegionDesc> regionDescs, boolean isBuildAllowed) {
+		File packFile = new File(dir, PACK_FILE);
+		RegionPack pack = RegionPack.open(packFile, stamp);
+		if (pack != null || !isBuildAllowed) {
+			return pack;
+		}
+
+		log.info("Compiling region pack for {}", dir);
+		RegionPack.Writer writer = null;
+		try {
+			writer = new RegionPack.Writer(packFile);
+			for (RegionDesc regionDesc : regionDescs) {
+				Region region;
+				try {
+					region = readRegion(regionDesc);
+				} catch (IOException | RuntimeException e) {
+					log.warn("Can't read region {}", regionDesc.regionId);
+					continue;
+				}
+
+				writer.add(regionDesc.regionId, region);
+			}
+			writer.finish(stamp);
+		} catch (IOException e) {
+			log.warn("Can't write region pack {}", packFile);
+			if (writer != null) {
+				writer.abort();
+			}
+			return null;
+		}
+
+		return RegionPack.open(packFile, stamp);
+	}
+
+	/**
+	 * Load persisted index of directory or build new one.
+	 *
+	 * Bounding boxes taken from region pack, or if there is no pack, from single scan of every .poly file.
+	 * Polygons themselves are loaded only after bounding box hit
+	 *
+	 * @return index or null if index not built yet
+	 */
+	@Nullable
+	private RegionIndex loadIndex(File dir, String stamp, List<RegionDesc> regionDescs, RegionPack pack,
+								  boolean isBuildAllowed) {
+		File indexFile = new File(dir, INDEX_FILE);
+
+		RegionIndex index = RegionIndex.read(indexFile, stamp);
+		if (index != null || !isBuildAllowed) {
+			return index;
+		}
+
+		log.info("Building region index for {}", dir);
+		RegionIndex.Builder builder = new RegionIndex.Builder();
+		for (RegionDesc regionDesc : regionDescs) {
+			Region.Bounds packBounds = pack != null ? pack.getBounds(regionDesc.regionId) : null;
+			if (packBounds != null) {
+				builder.add(regionDesc.regionId, packBounds.minLat, packBounds.minLon,
+						packBounds.maxLat, packBounds.maxLon, packBounds.vertexCount, regionDesc.adminLevel);
+				continue;
+			}
+
+			FileInputStream input = null;
+			try {
+				input = new FileInputStream(regionDesc.file);
+				Region.Bounds bounds = Region.readBounds(input);
+				builder.add(regionDesc.regionId, bounds.minLat, bounds.minLon, bounds.maxLat, bounds.maxLon,
+						bounds.vertexCount, regionDesc.adminLevel);
+			} catch (IOException | RuntimeException e) {
+				log.warn("Can't read region {}", regionDesc.regionId);
+			} finally {
+				Utils.silentClose(input);
+			}
+		}
+
+		index = builder.build();
+		try {
+			index.write(indexFile, stamp);
+		} catch (IOException e) {
+			log.warn("Can't write region index {}", indexFile);
+		}
+		return index;
+	}
+
+	/**
+	 * Fill bounding boxes of region descriptors from index
+	 */
+	private void applyIndex(RegionIndex index, List<RegionDesc> regionDescs) {
+		Map<String, RegionDesc> descsById = new HashMap<>();
+		for (RegionDesc regionDesc : regionDescs) {
+			descsById.put(regionDesc.regionId, regionDesc);
+		}
+
+		for (int i = 0; i < index.size(); i++) {
+			RegionDesc regionDesc = descsById.get(index.getId(i));
+			if (regionDesc != null) {
+				regionDesc.minLat = index.getMinLat(i);
+				regionDesc.minLon = index.getMinLon(i);
+				regionDesc.maxLat = index.getMaxLat(i);
+				regionDesc.maxLon = index.getMaxLon(i);
+				regionDesc.vertexCount = index.getVertexCount(i);
+				regionDesc.hasBounds = true;
+			}
+		}
+	}
+
+	private String createStamp(File[] jsonFiles) {
+		Arrays.sort(jsonFiles);
+
+		StringBuilder builder = new StringBuilder();
+		for (File file : jsonFiles) {
+			builder.append('|').append(file.getName())
+					.append(':').append(file.length())
+					.append(':').append(file.lastModified());
+		}
+		return builder.toString();
+	}
+
+	private void loadRegionsFile(File cacheDir, File file, List<RegionDesc> regionDescs) {
 		FileReader reader = null;
 		try {
 			reader = new FileReader(file);
@@ -194,11 +807,7 @@ public class RegionCache {
 				}
 
 				File polyFile = new File(cacheDir, polyFileName);
-
-				if (polyFile.exists()) {
-					RegionDesc regionDesc = new RegionDesc(regionId, localeName, polyFile, adminLevel);
-					cachedFiles.put(regionId, regionDesc);
-				}
+				regionDescs.add(new RegionDesc(regionId, localeName, polyFile, adminLevel));
 			}
 		} catch (IOException e) {
 			log.error("Can't read regions json file {}", file.toString(), e);
@@ -210,12 +819,60 @@ public class RegionCache {
 	}
 
 
+	private static class Snapshot {
+		final Map<String, RegionDesc> regionDescs;
+		final Map<File, Directory> directories;
+
+		Snapshot(Map<String, RegionDesc> regionDescs, Map<File, Directory> directories) {
+			this.regionDescs = regionDescs;
+			this.directories = directories;
+		}
+	}
+
+	private static class Directory {
+		// Identifies content of directory, also validates its pack and index
+		final String stamp;
+		final List<RegionDesc> regionDescs;
+
+		// Null until index built
+		final RegionIndex index;
+
+		// Missing pack and index were compiled during load, otherwise only existing ones read
+		final boolean isBuilt;
+
+		Directory(String stamp, List<RegionDesc> regionDescs, RegionIndex index, boolean isBuilt) {
+			this.stamp = stamp;
+			this.regionDescs = regionDescs;
+			this.index = index;
+			this.isBuilt = isBuilt;
+		}
+	}
+
+	private static class CachedRegion {
+		// Descriptor region loaded from, null for regions provided by content items
+		final RegionDesc regionDesc;
+		final Region region;
+
+		CachedRegion(RegionDesc regionDesc, Region region) {
+			this.regionDesc = regionDesc;
+			this.region = region;
+		}
+	}
+
 	public static class RegionDesc {
 		public String regionId;
 		public String name;
 		File file;
+		RegionPack pack;
 		public int adminLevel;
 
+		// Filled from region index, polygon itself not loaded
+		public double minLat, minLon, maxLat, maxLon;
+		public int vertexCount;
+
+		// Bounding box known, false while index of region directory not built
+		public boolean hasBounds;
+
 		public RegionDesc(String regionId, String name, File file, int adminLevel) {
 			this.regionId = regionId;
 			this.name = name;
@@ -0,0 +1,350 @@
+package org.fruct.oss.mapcontent.content.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Static packed R-tree over bounding boxes of regions.
+ *
+ * Tree built once from all boxes (sort-tile-recursive packing) and stored in flat arrays:
+ * leaves first, then each upper level, root is the last node.
+ *
+ * Leaves also carry vertex count and admin level of region, so index file serves as sidecar
+ * describing regions without parsing their polygons.
+ */
+public class RegionIndex {
+	private static final int FORMAT_VERSION = 2;
+	private static final int NODE_SIZE = 16;
+
+	private final String[] ids;
+	private final int[] levelBounds;
+	private final double[] boxes;
+	private final int[] indices;
+	private final int[] vertexCounts;
+	private final int[] adminLevels;
+
+	private RegionIndex(String[] ids, int[] levelBounds, double[] boxes, int[] indices,
+						int[] vertexCounts, int[] adminLevels) {
+		this.ids = ids;
+		this.levelBounds = levelBounds;
+		this.boxes = boxes;
+		this.indices = indices;
+		this.vertexCounts = vertexCounts;
+		this.adminLevels = adminLevels;
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	public String getId(int i) {
+		return ids[i];
+	}
+
+	public double getMinLat(int i) {
+		return boxes[4 * i];
+	}
+
+	public double getMinLon(int i) {
+		return boxes[4 * i + 1];
+	}
+
+	public double getMaxLat(int i) {
+		return boxes[4 * i + 2];
+	}
+
+	public double getMaxLon(int i) {
+		return boxes[4 * i + 3];
+	}
+
+	public int getVertexCount(int i) {
+		return vertexCounts[i];
+	}
+
+	public int getAdminLevel(int i) {
+		return adminLevels[i];
+	}
+
+	/**
+	 * Find regions which bounding box contains point
+	 */
+	public List<String> query(double lat, double lon) {
+		return query(lat, lon, lat, lon);
+	}
+
+	/**
+	 * Find regions which bounding box intersects given box
+	 */
+	public List<String> query(double minLat, double minLon, double maxLat, double maxLon) {
+		if (ids.length == 0) {
+			return Collections.emptyList();
+		}
+
+		List<String> result = new ArrayList<>();
+		int[] stack = new int[levelBounds.length * NODE_SIZE * 2];
+		int stackSize = 0;
+
+		int nodeIndex = indices.length - 1;
+		int level = levelBounds.length - 1;
+
+		while (true) {
+			int end = Math.min(nodeIndex + NODE_SIZE, levelBounds[level]);
+
+			for (int node = nodeIndex; node < end; node++) {
+				int pos = node * 4;
+				if (maxLat < boxes[pos] || maxLon < boxes[pos + 1]
+						|| minLat > boxes[pos + 2] || minLon > boxes[pos + 3]) {
+					continue;
+				}
+
+				if (nodeIndex < ids.length) {
+					result.add(ids[indices[node]]);
+				} else {
+					stack[stackSize++] = indices[node];
+					stack[stackSize++] = level - 1;
+				}
+			}
+
+			if (stackSize == 0) {
+				break;
+			}
+
+			level = stack[--stackSize];
+			nodeIndex = stack[--stackSize];
+		}
+
+		return result;
+	}
+
+	public void write(File file, String stamp) throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		DataOutputStream output = null;
+		try {
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			output.writeInt(FORMAT_VERSION);
+			output.writeUTF(stamp);
+
+			output.writeInt(ids.length);
+			for (int i = 0; i < ids.length; i++) {
+				output.writeUTF(ids[i]);
+				output.writeInt(vertexCounts[i]);
+				output.writeInt(adminLevels[i]);
+			}
+
+			output.writeInt(levelBounds.length);
+			for (int levelBound : levelBounds) {
+				output.writeInt(levelBound);
+			}
+
+			output.writeInt(indices.length);
+			for (int i = 0; i < indices.length; i++) {
+				output.writeInt(indices[i]);
+				output.writeDouble(boxes[4 * i]);
+				output.writeDouble(boxes[4 * i + 1]);
+				output.writeDouble(boxes[4 * i + 2]);
+				output.writeDouble(boxes[4 * i + 3]);
+			}
+		} finally {
+			Utils.silentClose(output);
+		}
+
+		if (!tmpFile.renameTo(file)) {
+			tmpFile.delete();
+			throw new IOException("Can't write region index " + file);
+		}
+	}
+
+	/**
+	 * Read index from file
+	 *
+	 * @param file index file
+	 * @param expectedStamp stamp of source data, index ignored if stamp differs
+	 * @return index or null if file absent, corrupted or stale
+	 */
+	public static RegionIndex read(File file, String expectedStamp) {
+		if (!file.isFile()) {
+			return null;
+		}
+
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (input.readInt() != FORMAT_VERSION || !input.readUTF().equals(expectedStamp)) {
+				return null;
+			}
+
+			String[] ids = new String[input.readInt()];
+			int[] vertexCounts = new int[ids.length];
+			int[] adminLevels = new int[ids.length];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = input.readUTF();
+				vertexCounts[i] = input.readInt();
+				adminLevels[i] = input.readInt();
+			}
+
+			int[] levelBounds = new int[input.readInt()];
+			for (int i = 0; i < levelBounds.length; i++) {
+				levelBounds[i] = input.readInt();
+			}
+
+			int[] indices = new int[input.readInt()];
+			double[] boxes = new double[indices.length * 4];
+			for (int i = 0; i < indices.length; i++) {
+				indices[i] = input.readInt();
+				boxes[4 * i] = input.readDouble();
+				boxes[4 * i + 1] = input.readDouble();
+				boxes[4 * i + 2] = input.readDouble();
+				boxes[4 * i + 3] = input.readDouble();
+			}
+
+			return new RegionIndex(ids, levelBounds, boxes, indices, vertexCounts, adminLevels);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			Utils.silentClose(input);
+		}
+	}
+
+	public static class Builder {
+		private final List<Entry> entries = new ArrayList<>();
+
+		public Builder add(String id, double minLat, double minLon, double maxLat, double maxLon,
+						   int vertexCount, int adminLevel) {
+			entries.add(new Entry(id, minLat, minLon, maxLat, maxLon, vertexCount, adminLevel));
+			return this;
+		}
+
+		public RegionIndex build() {
+			final int count = entries.size();
+
+			// Calculate level bounds
+			List<Integer> levelBoundsList = new ArrayList<>();
+			int n = count;
+			int numNodes = count;
+			levelBoundsList.add(numNodes);
+			if (count > 0) {
+				do {
+					n = (n + NODE_SIZE - 1) / NODE_SIZE;
+					numNodes += n;
+					levelBoundsList.add(numNodes);
+				} while (n != 1);
+			}
+
+			int[] levelBounds = new int[levelBoundsList.size()];
+			for (int i = 0; i < levelBounds.length; i++) {
+				levelBounds[i] = levelBoundsList.get(i);
+			}
+
+			sortTileRecursive(entries);
+
+			String[] ids = new String[count];
+			double[] boxes = new double[numNodes * 4];
+			int[] indices = new int[numNodes];
+			int[] vertexCounts = new int[count];
+			int[] adminLevels = new int[count];
+
+			for (int i = 0; i < count; i++) {
+				Entry entry = entries.get(i);
+				ids[i] = entry.id;
+				vertexCounts[i] = entry.vertexCount;
+				adminLevels[i] = entry.adminLevel;
+				indices[i] = i;
+				boxes[4 * i] = entry.minLat;
+				boxes[4 * i + 1] = entry.minLon;
+				boxes[4 * i + 2] = entry.maxLat;
+				boxes[4 * i + 3] = entry.maxLon;
+			}
+
+			// Pack each level into parent nodes
+			int pos = 0;
+			int parent = count;
+			for (int level = 0; level < levelBounds.length - 1; level++) {
+				int end = levelBounds[level];
+
+				while (pos < end) {
+					int childEnd = Math.min(pos + NODE_SIZE, end);
+
+					double minLat = Double.POSITIVE_INFINITY, minLon = Double.POSITIVE_INFINITY;
+					double maxLat = Double.NEGATIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+					for (int child = pos; child < childEnd; child++) {
+						minLat = Math.min(minLat, boxes[4 * child]);
+						minLon = Math.min(minLon, boxes[4 * child + 1]);
+						maxLat = Math.max(maxLat, boxes[4 * child + 2]);
+						maxLon = Math.max(maxLon, boxes[4 * child + 3]);
+					}
+
+					indices[parent] = pos;
+					boxes[4 * parent] = minLat;
+					boxes[4 * parent + 1] = minLon;
+					boxes[4 * parent + 2] = maxLat;
+					boxes[4 * parent + 3] = maxLon;
+
+					parent++;
+					pos = childEnd;
+				}
+			}
+
+			return new RegionIndex(ids, levelBounds, boxes, indices, vertexCounts, adminLevels);
+		}
+
+		private static void sortTileRecursive(List<Entry> entries) {
+			Collections.sort(entries, new Comparator<Entry>() {
+				@Override
+				public int compare(Entry lhs, Entry rhs) {
+					return Double.compare(lhs.centerLon(), rhs.centerLon());
+				}
+			});
+
+			int leafCount = (entries.size() + NODE_SIZE - 1) / NODE_SIZE;
+			int sliceCount = (int) Math.ceil(Math.sqrt(leafCount));
+			int sliceSize = sliceCount * NODE_SIZE;
+
+			Comparator<Entry> latComparator = new Comparator<Entry>() {
+				@Override
+				public int compare(Entry lhs, Entry rhs) {
+					return Double.compare(lhs.centerLat(), rhs.centerLat());
+				}
+			};
+
+			for (int start = 0; start < entries.size(); start += sliceSize) {
+				Collections.sort(entries.subList(start, Math.min(start + sliceSize, entries.size())), latComparator);
+			}
+		}
+	}
+
+	private static class Entry {
+		final String id;
+		final double minLat, minLon, maxLat, maxLon;
+		final int vertexCount;
+		final int adminLevel;
+
+		Entry(String id, double minLat, double minLon, double maxLat, double maxLon,
+			  int vertexCount, int adminLevel) {
+			this.id = id;
+			this.minLat = minLat;
+			this.minLon = minLon;
+			this.maxLat = maxLat;
+			this.maxLon = maxLon;
+			this.vertexCount = vertexCount;
+			this.adminLevel = adminLevel;
+		}
+
+		double centerLat() {
+			return (minLat + maxLat) / 2;
+		}
+
+		double centerLon() {
+			return (minLon + maxLon) / 2;
+		}
+	}
+}
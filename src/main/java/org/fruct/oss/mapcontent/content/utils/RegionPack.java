@@ -0,0 +1,287 @@
+package org.fruct.oss.mapcontent.content.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled region polygons, memory-mapped read-only.
+ *
+ * File layout: magic, format version and offset of region table, then region records, then table.
+ * Record contains polygon count and for each polygon vertex count, bounding box and
+ * interleaved lat, lon pairs. All coordinates stored as int32 fixed-point values
+ * (see {@link Region.PackedPolygon#FIXED_POINT_SCALE}).
+ * Table contains stamp of source data and for each region id, record offset,
+ * bounding box and vertex count.
+ */
+public class RegionPack {
+	private static final int MAGIC = 0x52504b31;
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+
+	private final MappedByteBuffer buffer;
+	private final Map<String, Entry> entries;
+
+	private RegionPack(MappedByteBuffer buffer, Map<String, Entry> entries) {
+		this.buffer = buffer;
+		this.entries = entries;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public boolean contains(String regionId) {
+		return entries.containsKey(regionId);
+	}
+
+	/**
+	 * @return bounding box and vertex count of region or null if region not in pack
+	 */
+	public Region.Bounds getBounds(String regionId) {
+		Entry entry = entries.get(regionId);
+		return entry == null ? null : entry.bounds;
+	}
+
+	/**
+	 * Create region backed by mapped file. Coordinates not copied to heap.
+	 *
+	 * @return region or null if region not in pack
+	 */
+	public Region getRegion(String regionId) {
+		Entry entry = entries.get(regionId);
+		if (entry == null) {
+			return null;
+		}
+
+		// Duplicate to not share position between threads
+		ByteBuffer recordBuffer = buffer.duplicate();
+		recordBuffer.position(entry.offset);
+		IntBuffer ints = recordBuffer.asIntBuffer();
+
+		int polygonCount = ints.get(0);
+		List<Region.Polygon> polygons = new ArrayList<>(polygonCount);
+
+		int pos = 1;
+		for (int i = 0; i < polygonCount; i++) {
+			int size = ints.get(pos);
+			double aLat = ints.get(pos + 1) / Region.PackedPolygon.FIXED_POINT_SCALE;
+			double aLon = ints.get(pos + 2) / Region.PackedPolygon.FIXED_POINT_SCALE;
+			double bLat = ints.get(pos + 3) / Region.PackedPolygon.FIXED_POINT_SCALE;
+			double bLon = ints.get(pos + 4) / Region.PackedPolygon.FIXED_POINT_SCALE;
+			pos += 5;
+
+			ints.position(pos);
+			IntBuffer coords = ints.slice();
+			coords.limit(size * 2);
+			polygons.add(new Region.PackedPolygon(coords, size, aLat, aLon, bLat, bLon));
+
+			pos += size * 2;
+		}
+
+		return new Region(polygons);
+	}
+
+	/**
+	 * Map pack file
+	 *
+	 * @param file pack file
+	 * @param expectedStamp stamp of source data, pack ignored if stamp differs
+	 * @return pack or null if file absent, corrupted or stale
+	 */
+	public static RegionPack open(File file, String expectedStamp) {
+		if (!file.isFile()) {
+			return null;
+		}
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			if (raf.readInt() != MAGIC || raf.readInt() != FORMAT_VERSION) {
+				return null;
+			}
+
+			long tableOffset = raf.readLong();
+			if (tableOffset < HEADER_SIZE || tableOffset > raf.length()) {
+				return null;
+			}
+
+			raf.seek(tableOffset);
+			if (!raf.readUTF().equals(expectedStamp)) {
+				return null;
+			}
+
+			int count = raf.readInt();
+			Map<String, Entry> entries = new HashMap<>(count * 2);
+			for (int i = 0; i < count; i++) {
+				String regionId = raf.readUTF();
+				Entry entry = new Entry(raf.readInt());
+				entry.bounds.minLat = raf.readDouble();
+				entry.bounds.minLon = raf.readDouble();
+				entry.bounds.maxLat = raf.readDouble();
+				entry.bounds.maxLon = raf.readDouble();
+				entry.bounds.vertexCount = raf.readInt();
+				entries.put(regionId, entry);
+			}
+
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, tableOffset);
+			return new RegionPack(buffer, Collections.unmodifiableMap(entries));
+		} catch (IOException e) {
+			return null;
+		} finally {
+			Utils.silentClose(raf);
+		}
+	}
+
+	/**
+	 * Writes pack file. Regions added one by one, so only one parsed region kept in memory.
+	 */
+	public static class Writer {
+		private final File file;
+		private final File tmpFile;
+		private final DataOutputStream output;
+		private final Map<String, Entry> entries = new HashMap<>();
+
+		public Writer(File file) throws IOException {
+			this.file = file;
+			this.tmpFile = new File(file.getPath() + ".tmp");
+			this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+
+			output.writeInt(MAGIC);
+			output.writeInt(FORMAT_VERSION);
+			// Table offset, filled in finish()
+			output.writeLong(0);
+		}
+
+		public void add(String regionId, Region region) throws IOException {
+			Entry entry = new Entry(output.size());
+			Region.Bounds bounds = entry.bounds;
+
+			List<Region.Polygon> polygons = region.getPolygons();
+			output.writeInt(polygons.size());
+			for (Region.Polygon polygon : polygons) {
+				int size = polygon.size();
+				int[] coords = new int[size * 2];
+				int aLat = Integer.MAX_VALUE, aLon = Integer.MAX_VALUE;
+				int bLat = Integer.MIN_VALUE, bLon = Integer.MIN_VALUE;
+				for (int i = 0; i < size; i++) {
+					int lat = toFixed(polygon.getLat(i));
+					int lon = toFixed(polygon.getLon(i));
+					coords[2 * i] = lat;
+					coords[2 * i + 1] = lon;
+					aLat = Math.min(aLat, lat);
+					aLon = Math.min(aLon, lon);
+					bLat = Math.max(bLat, lat);
+					bLon = Math.max(bLon, lon);
+				}
+
+				output.writeInt(size);
+				output.writeInt(aLat);
+				output.writeInt(aLon);
+				output.writeInt(bLat);
+				output.writeInt(bLon);
+				for (int coord : coords) {
+					output.writeInt(coord);
+				}
+
+				if (size > 0) {
+					bounds.minLat = Math.min(bounds.minLat, aLat / Region.PackedPolygon.FIXED_POINT_SCALE);
+					bounds.minLon = Math.min(bounds.minLon, aLon / Region.PackedPolygon.FIXED_POINT_SCALE);
+					bounds.maxLat = Math.max(bounds.maxLat, bLat / Region.PackedPolygon.FIXED_POINT_SCALE);
+					bounds.maxLon = Math.max(bounds.maxLon, bLon / Region.PackedPolygon.FIXED_POINT_SCALE);
+				}
+				bounds.vertexCount += size;
+			}
+
+			entries.put(regionId, entry);
+		}
+
+		public Region.Bounds getBounds(String regionId) {
+			Entry entry = entries.get(regionId);
+			return entry == null ? null : entry.bounds;
+		}
+
+		/**
+		 * Replace ids of added regions, so regions can be added before their ids are known.
+		 * Regions which ids not in map are excluded from pack
+		 *
+		 * @param regionIds new region id by current id
+		 */
+		public void renameRegions(Map<String, String> regionIds) {
+			Map<String, Entry> renamedEntries = new HashMap<>();
+			for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+				String regionId = regionIds.get(mapEntry.getKey());
+				if (regionId != null) {
+					renamedEntries.put(regionId, mapEntry.getValue());
+				}
+			}
+
+			entries.clear();
+			entries.putAll(renamedEntries);
+		}
+
+		public void finish(String stamp) throws IOException {
+			long tableOffset = output.size();
+			try {
+				output.writeUTF(stamp);
+				output.writeInt(entries.size());
+				for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+					Entry entry = mapEntry.getValue();
+					output.writeUTF(mapEntry.getKey());
+					output.writeInt(entry.offset);
+					output.writeDouble(entry.bounds.minLat);
+					output.writeDouble(entry.bounds.minLon);
+					output.writeDouble(entry.bounds.maxLat);
+					output.writeDouble(entry.bounds.maxLon);
+					output.writeInt(entry.bounds.vertexCount);
+				}
+			} finally {
+				Utils.silentClose(output);
+			}
+
+			RandomAccessFile raf = null;
+			try {
+				raf = new RandomAccessFile(tmpFile, "rw");
+				raf.seek(8);
+				raf.writeLong(tableOffset);
+			} finally {
+				Utils.silentClose(raf);
+			}
+
+			if (!tmpFile.renameTo(file)) {
+				tmpFile.delete();
+				throw new IOException("Can't write region pack " + file);
+			}
+		}
+
+		public void abort() {
+			Utils.silentClose(output);
+			tmpFile.delete();
+		}
+
+		private static int toFixed(double value) {
+			return (int) Math.round(value * Region.PackedPolygon.FIXED_POINT_SCALE);
+		}
+	}
+
+	private static class Entry {
+		final int offset;
+		final Region.Bounds bounds = new Region.Bounds();
+
+		Entry(int offset) {
+			this.offset = offset;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package org.fruct.oss.mapcontent.content.utils;
+
+import java.io.IOException;
+
+/**
+ * Server answered request, but with response code that can't be handled
+ */
+public class ResponseCodeException extends IOException {
+	private final int responseCode;
+
+	public ResponseCodeException(String urlStr, int responseCode) {
+		super(urlStr + " returned code " + responseCode);
+		this.responseCode = responseCode;
+	}
+
+	public int getResponseCode() {
+		return responseCode;
+	}
+}
@@ -37,6 +37,10 @@ public class StrUtil {
 	}
 
 	public static String hashStream(InputStream in, String hash) throws IOException {
+		return hashStream(in, hash, 4096);
+	}
+
+	public static String hashStream(InputStream in, String hash, int bsize) throws IOException {
 		MessageDigest md5 = null;
 		try {
 			md5 = MessageDigest.getInstance(hash);
@@ -44,7 +48,6 @@ public class StrUtil {
 			e.printStackTrace();
 		}
 
-		int bsize = 4096;
 		byte[] buffer = new byte[bsize];
 		int length;
 
@@ -0,0 +1,317 @@
+package org.fruct.oss.mapcontent.content.utils;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes tasks in independent lanes, so long bulk operations (downloads, migration)
+ * don't delay short interactive ones (region checks, activation).
+ *
+ * Each lane has bounded number of threads and priority queue. Tasks can be submitted with key:
+ * while task with the same key queued or running, identical submissions return existing task,
+ * and task can be cancelled by key.
+ *
+ * Scheduler can be held: tasks submitted while held start only after {@link #release()},
+ * except tasks submitted with {@link #submitUnheld}.
+ */
+public class TaskScheduler {
+	public static final int PRIORITY_LOW = 0;
+	public static final int PRIORITY_NORMAL = 5;
+	public static final int PRIORITY_HIGH = 10;
+
+	public enum Lane {
+		INTERACTIVE, BULK
+	}
+
+	private final Map<Lane, ThreadPoolExecutor> executors = new EnumMap<>(Lane.class);
+	private final Map<String, KeyedTask> keyedTasks = new HashMap<>();
+	private final AtomicLong sequence = new AtomicLong();
+
+	// Tasks waiting for release, guarded by keyedTasks
+	private final List<KeyedTask> heldTasks = new ArrayList<>();
+	private boolean isHeld;
+
+	private final AtomicInteger runningExecutors = new AtomicInteger();
+	private volatile Runnable terminationCallback;
+
+	public TaskScheduler(int interactiveThreads, int bulkThreads) {
+		executors.put(Lane.INTERACTIVE, createExecutor("interactive", interactiveThreads));
+		executors.put(Lane.BULK, createExecutor("bulk", bulkThreads));
+	}
+
+	/**
+	 * Submit task
+	 *
+	 * @param lane lane to execute task
+	 * @param key key for deduplication and cancellation or null
+	 * @param priority task priority, tasks with higher priority started first
+	 * @param runnable task
+	 * @return future of submitted task or of already existing task with the same key
+	 */
+	public Future<?> submit(Lane lane, @Nullable String key, int priority, @NonNull Runnable runnable) {
+		return submit(lane, key, priority, runnable, true, false);
+	}
+
+	/**
+	 * Submit task that starts even if scheduler held, for example task that releases it
+	 *
+	 * @see #submit(Lane, String, int, Runnable)
+	 */
+	public Future<?> submitUnheld(Lane lane, @Nullable String key, int priority, @NonNull Runnable runnable) {
+		return submit(lane, key, priority, runnable, false, false);
+	}
+
+	/**
+	 * Submit task that must observe latest state. If task with the same key already running,
+	 * it executed once more after it finishes, instead of dropping this submission.
+	 *
+	 * @see #submit(Lane, String, int, Runnable)
+	 */
+	public Future<?> submitLatest(Lane lane, @NonNull String key, int priority, @NonNull Runnable runnable) {
+		return submit(lane, key, priority, runnable, true, true);
+	}
+
+	private Future<?> submit(Lane lane, String key, int priority, Runnable runnable,
+							 boolean isHoldable, boolean isRerunRequired) {
+		KeyedTask task;
+		synchronized (keyedTasks) {
+			if (key != null) {
+				KeyedTask existingTask = keyedTasks.get(key);
+				if (existingTask != null) {
+					if (isRerunRequired && existingTask.isStarted) {
+						existingTask.isRerunRequested = true;
+					}
+					return existingTask;
+				}
+			}
+
+			task = new KeyedTask(lane, key, priority, sequence.getAndIncrement(), runnable);
+			if (key != null) {
+				keyedTasks.put(key, task);
+			}
+
+			if (isHoldable && isHeld) {
+				heldTasks.add(task);
+				return task;
+			}
+		}
+
+		execute(task);
+		return task;
+	}
+
+	private void execute(KeyedTask task) {
+		try {
+			executors.get(task.lane).execute(task);
+		} catch (RejectedExecutionException e) {
+			// Late submissions, for example from file observers, dropped after shutdown
+			task.cancel(false);
+		}
+	}
+
+	/**
+	 * Postpone start of submitted tasks until {@link #release()}
+	 */
+	public void hold() {
+		synchronized (keyedTasks) {
+			isHeld = true;
+		}
+	}
+
+	/**
+	 * Start tasks submitted while scheduler was held
+	 */
+	public void release() {
+		List<KeyedTask> tasks;
+		synchronized (keyedTasks) {
+			isHeld = false;
+			tasks = new ArrayList<>(heldTasks);
+			heldTasks.clear();
+		}
+
+		for (KeyedTask task : tasks) {
+			execute(task);
+		}
+	}
+
+	/**
+	 * Check if task with key queued or running
+	 */
+	public boolean isActive(String key) {
+		synchronized (keyedTasks) {
+			return keyedTasks.containsKey(key);
+		}
+	}
+
+	/**
+	 * Cancel task with given key, interrupting it if running
+	 * @return true if task was found
+	 */
+	public boolean cancel(String key) {
+		KeyedTask task;
+		synchronized (keyedTasks) {
+			task = keyedTasks.get(key);
+		}
+
+		if (task != null) {
+			task.cancel(true);
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * Cancel all tasks which keys start with given prefix
+	 * @return count of cancelled tasks
+	 */
+	public int cancelByPrefix(String keyPrefix) {
+		List<KeyedTask> tasks = new ArrayList<>();
+		synchronized (keyedTasks) {
+			for (Map.Entry<String, KeyedTask> entry : keyedTasks.entrySet()) {
+				if (entry.getKey().startsWith(keyPrefix)) {
+					tasks.add(entry.getValue());
+				}
+			}
+		}
+
+		for (KeyedTask task : tasks) {
+			task.cancel(true);
+		}
+
+		return tasks.size();
+	}
+
+	public void shutdown() {
+		shutdown(null);
+	}
+
+	/**
+	 * Stop accepting tasks. Held tasks cancelled, already queued and running tasks finish normally.
+	 *
+	 * @param onTerminated called once after running tasks of all lanes finished, on thread of last
+	 *                     finished task or on calling thread if nothing running, or null
+	 */
+	public void shutdown(@Nullable Runnable onTerminated) {
+		terminationCallback = onTerminated;
+
+		List<KeyedTask> tasks;
+		synchronized (keyedTasks) {
+			tasks = new ArrayList<>(heldTasks);
+			heldTasks.clear();
+		}
+
+		for (KeyedTask task : tasks) {
+			task.cancel(false);
+		}
+
+		for (ThreadPoolExecutor executor : executors.values()) {
+			executor.shutdown();
+		}
+	}
+
+	private ThreadPoolExecutor createExecutor(final String name, int threads) {
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(@NonNull Runnable r) {
+				Thread thread = new Thread(r, "content-" + name + "-" + counter.incrementAndGet());
+				thread.setPriority(Thread.NORM_PRIORITY - 1);
+				return thread;
+			}
+		};
+
+		runningExecutors.incrementAndGet();
+		return new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new PriorityBlockingQueue<Runnable>(), threadFactory) {
+			@Override
+			protected void terminated() {
+				Runnable callback = terminationCallback;
+				if (runningExecutors.decrementAndGet() == 0 && callback != null) {
+					callback.run();
+				}
+			}
+		};
+	}
+
+	private class KeyedTask extends FutureTask<Void> implements Comparable<KeyedTask> {
+		private final Lane lane;
+		private final String key;
+		private final int priority;
+		private final long sequence;
+		private final Runnable runnable;
+
+		// Guarded by keyedTasks
+		private boolean isStarted;
+		private boolean isRerunRequested;
+
+		private KeyedTask(Lane lane, String key, int priority, long sequence, Runnable runnable) {
+			super(runnable, null);
+			this.lane = lane;
+			this.key = key;
+			this.priority = priority;
+			this.sequence = sequence;
+			this.runnable = runnable;
+		}
+
+		@Override
+		public void run() {
+			if (key != null) {
+				synchronized (keyedTasks) {
+					isStarted = true;
+				}
+			}
+
+			super.run();
+		}
+
+		@Override
+		protected void done() {
+			if (key == null) {
+				return;
+			}
+
+			KeyedTask rerunTask = null;
+			synchronized (keyedTasks) {
+				if (keyedTasks.get(key) == this) {
+					keyedTasks.remove(key);
+
+					if (isRerunRequested && !isCancelled() && !executors.get(lane).isShutdown()) {
+						rerunTask = new KeyedTask(lane, key, priority, TaskScheduler.this.sequence.getAndIncrement(),
+								runnable);
+						keyedTasks.put(key, rerunTask);
+					}
+				}
+			}
+
+			if (rerunTask != null) {
+				execute(rerunTask);
+			}
+		}
+
+		@Override
+		public int compareTo(@NonNull KeyedTask another) {
+			if (priority != another.priority) {
+				return priority > another.priority ? -1 : 1;
+			}
+
+			return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+		}
+	}
+}
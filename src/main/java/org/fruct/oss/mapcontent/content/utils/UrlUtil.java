@@ -6,7 +6,9 @@ import org.slf4j.LoggerFactory;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 
 public class UrlUtil {
@@ -31,7 +33,138 @@ public class UrlUtil {
 		};
 	}
 
-	private static HttpURLConnection getConnection(String urlStr, final int recursionDepth) throws IOException {
+	/**
+	 * Open connection that continues download from given offset
+	 *
+	 * Caller must check response code: {@link HttpURLConnection#HTTP_PARTIAL} means that server
+	 * returned requested range, {@link HttpURLConnection#HTTP_OK} means that server ignored range
+	 * (or If-Range validator didn't match) and whole entity will be returned from start.
+	 *
+	 * @param urlStr url
+	 * @param offset first byte to request
+	 * @param ifRange ETag of previously downloaded entity or null
+	 * @return connected connection
+	 */
+	public static HttpURLConnection getRangeConnection(String urlStr, long offset, String ifRange) throws IOException {
+		return getRangeConnection(urlStr, offset, -1, ifRange);
+	}
+
+	/**
+	 * Open connection that requests closed byte range
+	 *
+	 * @param urlStr url
+	 * @param offset first byte to request
+	 * @param last last byte to request (inclusive) or -1 to request data up to the end
+	 * @param ifRange ETag of previously downloaded entity or null
+	 * @return connected connection
+	 * @throws ResponseCodeException if server answered with error or with wrong range
+	 * @see #getRangeConnection(String, long, String)
+	 */
+	public static HttpURLConnection getRangeConnection(String urlStr, long offset, long last, String ifRange) throws IOException {
+		HttpURLConnection conn = openConnection(urlStr);
+
+		if (offset > 0 || last >= 0) {
+			conn.setRequestProperty("Range", "bytes=" + offset + "-" + (last >= 0 ? String.valueOf(last) : ""));
+			if (ifRange != null) {
+				conn.setRequestProperty("If-Range", ifRange);
+			}
+		}
+
+		conn.connect();
+		int code = conn.getResponseCode();
+
+		if (code == HttpURLConnection.HTTP_OK) {
+			return conn;
+		} else if (code == HttpURLConnection.HTTP_PARTIAL && getRangeStart(conn) == offset) {
+			return conn;
+		} else {
+			conn.disconnect();
+			throw new ResponseCodeException(urlStr, code);
+		}
+	}
+
+	/**
+	 * Open connection that returns entity only if it changed since previous download
+	 *
+	 * Caller must check response code: {@link HttpURLConnection#HTTP_NOT_MODIFIED} means that
+	 * previously downloaded entity is still valid and response has no body.
+	 *
+	 * @param urlStr url
+	 * @param etag ETag of previously downloaded entity or null
+	 * @param lastModified Last-Modified time of previously downloaded entity or 0
+	 * @return connected connection
+	 */
+	public static HttpURLConnection getConditionalConnection(String urlStr, String etag, long lastModified) throws IOException {
+		HttpURLConnection conn = openConnection(urlStr);
+
+		if (etag != null) {
+			conn.setRequestProperty("If-None-Match", etag);
+		}
+		if (lastModified > 0) {
+			conn.setIfModifiedSince(lastModified);
+		}
+
+		conn.connect();
+		int code = conn.getResponseCode();
+
+		if (code == HttpURLConnection.HTTP_OK || code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			return conn;
+		} else {
+			conn.disconnect();
+			throw new IOException(urlStr + " returned code " + code);
+		}
+	}
+
+	/**
+	 * Returns full entity length from Content-Range header of partial response
+	 * @param conn connection
+	 * @return entity length or -1 if unknown
+	 */
+	public static long getEntityLength(HttpURLConnection conn) {
+		String contentRange = conn.getHeaderField("Content-Range");
+		if (contentRange == null) {
+			return -1;
+		}
+
+		int slashIndex = contentRange.lastIndexOf('/');
+		if (slashIndex < 0) {
+			return -1;
+		}
+
+		try {
+			return Long.parseLong(contentRange.substring(slashIndex + 1).trim());
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Distinguish thread interruption from network timeout, both reported as {@link InterruptedIOException}
+	 */
+	public static boolean isInterruption(IOException e) {
+		return e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException);
+	}
+
+	private static long getRangeStart(HttpURLConnection conn) {
+		// Content-Range: bytes 100-999/1000
+		String contentRange = conn.getHeaderField("Content-Range");
+		if (contentRange == null || !contentRange.startsWith("bytes ")) {
+			return -1;
+		}
+
+		int dashIndex = contentRange.indexOf('-');
+		if (dashIndex < 0) {
+			return -1;
+		}
+
+		try {
+			return Long.parseLong(contentRange.substring("bytes ".length(), dashIndex).trim());
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	private static HttpURLConnection openConnection(String urlStr) throws IOException {
 		URL url = new URL(urlStr);
 		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
 		conn.setReadTimeout(10000);
@@ -39,6 +172,11 @@ public class UrlUtil {
 
 		conn.setRequestMethod("GET");
 		conn.setDoInput(true);
+		return conn;
+	}
+
+	private static HttpURLConnection getConnection(String urlStr, final int recursionDepth) throws IOException {
+		HttpURLConnection conn = openConnection(urlStr);
 
 		conn.connect();
 		int code = conn.getResponseCode();
@@ -0,0 +1,194 @@
+package org.fruct.oss.mapcontent.content.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+public class DeltaPatchTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private byte[] oldData;
+	private File oldFile;
+
+	@Before
+	public void setUp() throws Exception {
+		oldData = new byte[200 * 1024];
+		new Random(1).nextBytes(oldData);
+
+		oldFile = folder.newFile("old");
+		FileOutputStream output = new FileOutputStream(oldFile);
+		output.write(oldData);
+		output.close();
+	}
+
+	@After
+	public void tearDown() {
+		// Clear interrupt flag, so it doesn't leak to other tests
+		Thread.interrupted();
+	}
+
+	@Test
+	public void testApply() throws Exception {
+		byte[] added = "new data".getBytes("UTF-8");
+		// Copies longer than patch buffer are split
+		int copyLength = 150 * 1024;
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(oldData, 1000, copyLength);
+		expected.write(added);
+		expected.write(oldData, 0, 10);
+
+		PatchBuilder patch = new PatchBuilder(oldData.length, expected.size())
+				.copy(1000, copyLength)
+				.add(added)
+				.copy(0, 10);
+
+		assertArrayEquals(expected.toByteArray(), apply(patch.build()));
+	}
+
+	@Test
+	public void testApplyEmpty() throws Exception {
+		assertArrayEquals(new byte[0], apply(new PatchBuilder(oldData.length, 0).build()));
+	}
+
+	@Test
+	public void testApplyLargeAdd() throws Exception {
+		byte[] added = new byte[100 * 1024];
+		new Random(2).nextBytes(added);
+
+		assertArrayEquals(added, apply(new PatchBuilder(oldData.length, added.length).add(added).build()));
+	}
+
+	@Test(expected = IOException.class)
+	public void testBadMagic() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeInt(0);
+		output.writeInt(DeltaPatch.FORMAT_VERSION);
+		apply(bytes.toByteArray());
+	}
+
+	@Test(expected = IOException.class)
+	public void testOldLengthMismatch() throws Exception {
+		apply(new PatchBuilder(oldData.length + 1, 0).build());
+	}
+
+	@Test(expected = IOException.class)
+	public void testCopyOutsideOldFile() throws Exception {
+		apply(new PatchBuilder(oldData.length, 10).copy(oldData.length - 5, 10).build());
+	}
+
+	@Test(expected = IOException.class)
+	public void testNegativeAdd() throws Exception {
+		apply(new PatchBuilder(oldData.length, 10).add(-1).build());
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownInstruction() throws Exception {
+		apply(new PatchBuilder(oldData.length, 10).op(7).build());
+	}
+
+	@Test(expected = IOException.class)
+	public void testTooMuchData() throws Exception {
+		apply(new PatchBuilder(oldData.length, 5).copy(0, 10).build());
+	}
+
+	@Test(expected = IOException.class)
+	public void testTooLittleData() throws Exception {
+		apply(new PatchBuilder(oldData.length, 20).copy(0, 10).build());
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncatedPatch() throws Exception {
+		byte[] patch = new PatchBuilder(oldData.length, 10).add(new byte[10]).build();
+		apply(Arrays.copyOf(patch, patch.length - 6));
+	}
+
+	@Test
+	public void testInterruptedCopy() throws Exception {
+		byte[] patch = new PatchBuilder(oldData.length, 10).copy(0, 10).build();
+
+		Thread.currentThread().interrupt();
+		try {
+			apply(patch);
+			fail("Interrupted patch applied");
+		} catch (InterruptedIOException ignored) {
+		}
+	}
+
+	@Test
+	public void testInterruptedAdd() throws Exception {
+		byte[] patch = new PatchBuilder(oldData.length, 10).add(new byte[10]).build();
+
+		Thread.currentThread().interrupt();
+		try {
+			apply(patch);
+			fail("Interrupted patch applied");
+		} catch (InterruptedIOException ignored) {
+		}
+	}
+
+	private byte[] apply(byte[] patch) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		DeltaPatch.apply(oldFile, new ByteArrayInputStream(patch), output);
+		return output.toByteArray();
+	}
+
+	private static class PatchBuilder {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream output = new DataOutputStream(bytes);
+
+		PatchBuilder(long oldLength, long newLength) throws IOException {
+			output.writeInt(DeltaPatch.MAGIC);
+			output.writeInt(DeltaPatch.FORMAT_VERSION);
+			output.writeLong(oldLength);
+			output.writeLong(newLength);
+		}
+
+		PatchBuilder copy(long offset, int length) throws IOException {
+			output.writeByte(DeltaPatch.OP_COPY);
+			output.writeLong(offset);
+			output.writeInt(length);
+			return this;
+		}
+
+		PatchBuilder add(byte[] data) throws IOException {
+			output.writeByte(DeltaPatch.OP_ADD);
+			output.writeInt(data.length);
+			output.write(data);
+			return this;
+		}
+
+		PatchBuilder add(int length) throws IOException {
+			output.writeByte(DeltaPatch.OP_ADD);
+			output.writeInt(length);
+			return this;
+		}
+
+		PatchBuilder op(int op) throws IOException {
+			output.writeByte(op);
+			return this;
+		}
+
+		byte[] build() throws IOException {
+			output.writeByte(DeltaPatch.OP_END);
+			return bytes.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package org.fruct.oss.mapcontent.content.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RegionIndexTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testEmptyIndex() {
+		RegionIndex index = new RegionIndex.Builder().build();
+
+		assertEquals(0, index.size());
+		assertTrue(index.query(10, 10).isEmpty());
+		assertTrue(index.query(-90, -180, 90, 180).isEmpty());
+	}
+
+	@Test
+	public void testSingleRegion() {
+		RegionIndex index = new RegionIndex.Builder()
+				.add("a", 10, 20, 11, 21, 5, 4)
+				.build();
+
+		assertEquals(Collections.singletonList("a"), index.query(10.5, 20.5));
+		assertEquals(Collections.singletonList("a"), index.query(10, 20));
+		assertEquals(Collections.singletonList("a"), index.query(11, 21));
+		assertTrue(index.query(11.1, 20.5).isEmpty());
+		assertTrue(index.query(10.5, 19.9).isEmpty());
+	}
+
+	@Test
+	public void testQueryMatchesLinearScan() {
+		// Enough boxes for three levels of tree
+		List<double[]> boxes = createRandomBoxes(1000, 1);
+		RegionIndex index = createIndex(boxes);
+
+		Random random = new Random(2);
+		for (int i = 0; i < 500; i++) {
+			double lat = random.nextDouble() * 180 - 90;
+			double lon = random.nextDouble() * 360 - 180;
+			double size = random.nextDouble() * 10;
+
+			assertEquals(scan(boxes, lat, lon, lat, lon), sorted(index.query(lat, lon)));
+			assertEquals(scan(boxes, lat, lon, lat + size, lon + size),
+					sorted(index.query(lat, lon, lat + size, lon + size)));
+		}
+	}
+
+	@Test
+	public void testWriteRead() throws Exception {
+		List<double[]> boxes = createRandomBoxes(100, 3);
+		RegionIndex index = createIndex(boxes);
+
+		File file = new File(folder.getRoot(), "index");
+		index.write(file, "stamp");
+		RegionIndex readIndex = RegionIndex.read(file, "stamp");
+
+		assertNotNull(readIndex);
+		assertEquals(index.size(), readIndex.size());
+		for (int i = 0; i < index.size(); i++) {
+			assertEquals(index.getId(i), readIndex.getId(i));
+			assertEquals(index.getMinLat(i), readIndex.getMinLat(i), 0);
+			assertEquals(index.getMinLon(i), readIndex.getMinLon(i), 0);
+			assertEquals(index.getMaxLat(i), readIndex.getMaxLat(i), 0);
+			assertEquals(index.getMaxLon(i), readIndex.getMaxLon(i), 0);
+			assertEquals(index.getVertexCount(i), readIndex.getVertexCount(i));
+			assertEquals(index.getAdminLevel(i), readIndex.getAdminLevel(i));
+		}
+
+		assertEquals(sorted(index.query(-45, -90, 45, 90)), sorted(readIndex.query(-45, -90, 45, 90)));
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void testWriteReadEmpty() throws Exception {
+		File file = new File(folder.getRoot(), "index");
+		new RegionIndex.Builder().build().write(file, "stamp");
+
+		RegionIndex readIndex = RegionIndex.read(file, "stamp");
+		assertNotNull(readIndex);
+		assertEquals(0, readIndex.size());
+		assertTrue(readIndex.query(0, 0).isEmpty());
+	}
+
+	@Test
+	public void testReadStale() throws Exception {
+		File file = new File(folder.getRoot(), "index");
+		createIndex(createRandomBoxes(10, 4)).write(file, "stamp");
+
+		assertNull(RegionIndex.read(file, "other-stamp"));
+	}
+
+	@Test
+	public void testReadMissing() {
+		assertNull(RegionIndex.read(new File(folder.getRoot(), "missing"), "stamp"));
+	}
+
+	@Test
+	public void testReadTruncated() throws Exception {
+		File file = new File(folder.getRoot(), "index");
+		createIndex(createRandomBoxes(10, 5)).write(file, "stamp");
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 10);
+		raf.close();
+
+		assertNull(RegionIndex.read(file, "stamp"));
+	}
+
+	private static List<double[]> createRandomBoxes(int count, long seed) {
+		Random random = new Random(seed);
+		List<double[]> boxes = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			double lat = random.nextDouble() * 170 - 85;
+			double lon = random.nextDouble() * 350 - 175;
+			boxes.add(new double[] {lat, lon, lat + random.nextDouble() * 5, lon + random.nextDouble() * 5});
+		}
+		return boxes;
+	}
+
+	private static RegionIndex createIndex(List<double[]> boxes) {
+		RegionIndex.Builder builder = new RegionIndex.Builder();
+		for (int i = 0; i < boxes.size(); i++) {
+			double[] box = boxes.get(i);
+			builder.add(String.valueOf(i), box[0], box[1], box[2], box[3], i, i % 10);
+		}
+		return builder.build();
+	}
+
+	private static List<String> scan(List<double[]> boxes, double minLat, double minLon, double maxLat, double maxLon) {
+		List<String> result = new ArrayList<>();
+		for (int i = 0; i < boxes.size(); i++) {
+			double[] box = boxes.get(i);
+			if (maxLat >= box[0] && maxLon >= box[1] && minLat <= box[2] && minLon <= box[3]) {
+				result.add(String.valueOf(i));
+			}
+		}
+		return sorted(result);
+	}
+
+	private static List<String> sorted(List<String> ids) {
+		List<String> result = new ArrayList<>(ids);
+		Collections.sort(result);
+		return result;
+	}
+}
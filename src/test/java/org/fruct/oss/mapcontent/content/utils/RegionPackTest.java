@@ -0,0 +1,210 @@
+package org.fruct.oss.mapcontent.content.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RegionPackTest {
+	private static final double FIXED_POINT_EPS = 1e-7;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testWriteOpen() throws Exception {
+		Region diamond = createRegion(createDiamond(10, 20, 2));
+		Region islands = createRegion(createDiamond(-5, -5, 1), createDiamond(-1.1234567, 3.7654321, 0.5));
+
+		File file = new File(folder.getRoot(), "pack");
+		RegionPack.Writer writer = new RegionPack.Writer(file);
+		writer.add("diamond", diamond);
+		writer.add("islands", islands);
+		writer.finish("stamp");
+
+		RegionPack pack = RegionPack.open(file, "stamp");
+		assertNotNull(pack);
+		assertEquals(2, pack.size());
+		assertTrue(pack.contains("diamond"));
+		assertFalse(pack.contains("missing"));
+		assertNull(pack.getRegion("missing"));
+		assertNull(pack.getBounds("missing"));
+
+		assertRegionEquals(diamond, pack.getRegion("diamond"));
+		assertRegionEquals(islands, pack.getRegion("islands"));
+
+		Region.Bounds bounds = pack.getBounds("islands");
+		assertEquals(islands.getMinLat(), bounds.minLat, FIXED_POINT_EPS);
+		assertEquals(islands.getMinLon(), bounds.minLon, FIXED_POINT_EPS);
+		assertEquals(islands.getMaxLat(), bounds.maxLat, FIXED_POINT_EPS);
+		assertEquals(islands.getMaxLon(), bounds.maxLon, FIXED_POINT_EPS);
+		assertEquals(islands.getVertexCount(), bounds.vertexCount);
+	}
+
+	@Test
+	public void testHitMatchesSource() throws Exception {
+		Region region = createRegion(createDiamond(0, 0, 4), createDiamond(10, 10, 1));
+		assertTrue(region.testHit(0.1, 0.2));
+
+		File file = new File(folder.getRoot(), "pack");
+		RegionPack.Writer writer = new RegionPack.Writer(file);
+		writer.add("region", region);
+		writer.finish("stamp");
+
+		Region packedRegion = RegionPack.open(file, "stamp").getRegion("region");
+		for (double lat = -2; lat < 13; lat += 0.37) {
+			for (double lon = -2; lon < 13; lon += 0.37) {
+				assertEquals(region.testHit(lat, lon), packedRegion.testHit(lat, lon));
+			}
+		}
+	}
+
+	@Test
+	public void testEmptyPolygon() throws Exception {
+		Region region = createRegion(new Region.ArrayPolygon(new double[0], new double[0]), createDiamond(1, 1, 1));
+
+		File file = new File(folder.getRoot(), "pack");
+		RegionPack.Writer writer = new RegionPack.Writer(file);
+		writer.add("region", region);
+		writer.finish("stamp");
+
+		RegionPack pack = RegionPack.open(file, "stamp");
+		assertRegionEquals(region, pack.getRegion("region"));
+		assertEquals(0, pack.getBounds("region").minLat, FIXED_POINT_EPS);
+	}
+
+	@Test
+	public void testRenameRegions() throws Exception {
+		File file = new File(folder.getRoot(), "pack");
+		RegionPack.Writer writer = new RegionPack.Writer(file);
+		writer.add("0", createRegion(createDiamond(0, 0, 1)));
+		writer.add("1", createRegion(createDiamond(5, 5, 1)));
+
+		Map<String, String> regionIds = new HashMap<>();
+		regionIds.put("1", "ru-kr");
+		writer.renameRegions(regionIds);
+		assertNull(writer.getBounds("0"));
+		assertEquals(4, writer.getBounds("ru-kr").minLat, FIXED_POINT_EPS);
+		writer.finish("stamp");
+
+		RegionPack pack = RegionPack.open(file, "stamp");
+		assertEquals(1, pack.size());
+		assertTrue(pack.getRegion("ru-kr").testHit(5.1, 5.2));
+	}
+
+	@Test
+	public void testEmptyPack() throws Exception {
+		File file = new File(folder.getRoot(), "pack");
+		new RegionPack.Writer(file).finish("stamp");
+
+		RegionPack pack = RegionPack.open(file, "stamp");
+		assertNotNull(pack);
+		assertEquals(0, pack.size());
+	}
+
+	@Test
+	public void testAbort() throws Exception {
+		File file = new File(folder.getRoot(), "pack");
+		RegionPack.Writer writer = new RegionPack.Writer(file);
+		writer.add("region", createRegion(createDiamond(0, 0, 1)));
+		writer.abort();
+
+		assertFalse(file.exists());
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void testOpenStale() throws Exception {
+		File file = new File(folder.getRoot(), "pack");
+		RegionPack.Writer writer = new RegionPack.Writer(file);
+		writer.add("region", createRegion(createDiamond(0, 0, 1)));
+		writer.finish("stamp");
+
+		assertNull(RegionPack.open(file, "other-stamp"));
+	}
+
+	@Test
+	public void testOpenMissing() {
+		assertNull(RegionPack.open(new File(folder.getRoot(), "missing"), "stamp"));
+	}
+
+	@Test
+	public void testOpenCorrupted() throws Exception {
+		File file = new File(folder.getRoot(), "pack");
+		RegionPack.Writer writer = new RegionPack.Writer(file);
+		writer.add("region", createRegion(createDiamond(0, 0, 1)));
+		writer.finish("stamp");
+
+		// Table offset past end of file
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(8);
+		raf.writeLong(raf.length() + 1);
+		raf.close();
+		assertNull(RegionPack.open(file, "stamp"));
+
+		// Bad magic
+		raf = new RandomAccessFile(file, "rw");
+		raf.writeInt(0);
+		raf.close();
+		assertNull(RegionPack.open(file, "stamp"));
+	}
+
+	@Test
+	public void testOpenTruncated() throws Exception {
+		File file = new File(folder.getRoot(), "pack");
+		RegionPack.Writer writer = new RegionPack.Writer(file);
+		writer.add("region", createRegion(createDiamond(0, 0, 1)));
+		writer.finish("stamp");
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 4);
+		raf.close();
+
+		assertNull(RegionPack.open(file, "stamp"));
+	}
+
+	private static void assertRegionEquals(Region expected, Region actual) {
+		assertNotNull(actual);
+		assertEquals(expected.getPolygons().size(), actual.getPolygons().size());
+		assertEquals(expected.getVertexCount(), actual.getVertexCount());
+
+		for (int i = 0; i < expected.getPolygons().size(); i++) {
+			Region.Polygon expectedPolygon = expected.getPolygons().get(i);
+			Region.Polygon actualPolygon = actual.getPolygons().get(i);
+
+			assertEquals(expectedPolygon.size(), actualPolygon.size());
+			for (int j = 0; j < expectedPolygon.size(); j++) {
+				assertEquals(expectedPolygon.getLat(j), actualPolygon.getLat(j), FIXED_POINT_EPS);
+				assertEquals(expectedPolygon.getLon(j), actualPolygon.getLon(j), FIXED_POINT_EPS);
+			}
+
+			if (expectedPolygon.size() > 0) {
+				assertEquals(expectedPolygon.aLat, actualPolygon.aLat, FIXED_POINT_EPS);
+				assertEquals(expectedPolygon.aLon, actualPolygon.aLon, FIXED_POINT_EPS);
+				assertEquals(expectedPolygon.bLat, actualPolygon.bLat, FIXED_POINT_EPS);
+				assertEquals(expectedPolygon.bLon, actualPolygon.bLon, FIXED_POINT_EPS);
+			}
+		}
+	}
+
+	private static Region createRegion(Region.Polygon... polygons) {
+		return new Region(Arrays.asList(polygons));
+	}
+
+	private static Region.Polygon createDiamond(double lat, double lon, double radius) {
+		return new Region.ArrayPolygon(
+				new double[] {lat - radius, lat, lat + radius, lat, lat - radius},
+				new double[] {lon, lon + radius, lon, lon - radius, lon});
+	}
+}
@@ -0,0 +1,193 @@
+package org.fruct.oss.mapcontent.content.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RegionTest {
+	@Test
+	public void testSmallPolygonNotIndexed() {
+		assertNull(createStar(0, 0, 1, 2, 10).getEdgeIndex());
+	}
+
+	@Test
+	public void testEdgeIndexCached() {
+		Region.Polygon polygon = createStar(0, 0, 1, 2, 100);
+
+		Region.EdgeIndex edgeIndex = polygon.getEdgeIndex();
+		assertNotNull(edgeIndex);
+		assertSame(edgeIndex, polygon.getEdgeIndex());
+	}
+
+	@Test
+	public void testEdgeIndexContainsAllCrossingEdges() {
+		Region.Polygon polygon = createStar(60, 30, 3, 5, 500);
+		Region.EdgeIndex edgeIndex = polygon.getEdgeIndex();
+		int slabCount = edgeIndex.slabStarts.length - 1;
+		assertTrue(slabCount > 1);
+
+		for (int i = 0; i < polygon.size() - 1; i++) {
+			int first = edgeIndex.getSlab(Math.min(polygon.getLat(i), polygon.getLat(i + 1)));
+			int last = edgeIndex.getSlab(Math.max(polygon.getLat(i), polygon.getLat(i + 1)));
+			for (int s = first; s <= last; s++) {
+				assertTrue("Edge " + i + " missing in slab " + s, slabContains(edgeIndex, s, i));
+			}
+		}
+	}
+
+	@Test
+	public void testGetSlabClamped() {
+		Region.Polygon polygon = createStar(0, 0, 3, 5, 500);
+		Region.EdgeIndex edgeIndex = polygon.getEdgeIndex();
+		int slabCount = edgeIndex.slabStarts.length - 1;
+
+		assertEquals(0, edgeIndex.getSlab(polygon.aLat));
+		assertEquals(0, edgeIndex.getSlab(polygon.aLat - 10));
+		assertEquals(slabCount - 1, edgeIndex.getSlab(polygon.bLat));
+		assertEquals(slabCount - 1, edgeIndex.getSlab(polygon.bLat + 10));
+	}
+
+	@Test
+	public void testIndexedHitMatchesLinearScan() {
+		Region.Polygon polygon = createStar(60, 30, 3, 5, 500);
+		assertNotNull(polygon.getEdgeIndex());
+		Region region = new Region(Arrays.asList(polygon));
+
+		Random random = new Random(1);
+		for (int i = 0; i < 5000; i++) {
+			double lat = 54 + random.nextDouble() * 12;
+			double lon = 24 + random.nextDouble() * 12;
+			assertEquals("Point " + lat + " " + lon, scanHit(polygon, lat, lon), region.testHit(lat, lon));
+		}
+	}
+
+	@Test
+	public void testFlatPolygon() {
+		double[] lats = new double[100];
+		double[] lons = new double[100];
+		for (int i = 0; i < lats.length; i++) {
+			lats[i] = 10;
+			lons[i] = i;
+		}
+
+		Region.Polygon polygon = new Region.ArrayPolygon(lats, lons);
+		Region.EdgeIndex edgeIndex = polygon.getEdgeIndex();
+		assertEquals(0, edgeIndex.getSlab(10));
+		assertEquals(0, edgeIndex.getSlab(20));
+
+		Region region = new Region(Arrays.asList(polygon));
+		assertFalse(region.testHit(10, 50));
+	}
+
+	@Test
+	public void testIntersectsDisjoint() {
+		Region region = createDiamondRegion(0, 0, 2);
+
+		assertFalse(region.intersects(5, 5, 6, 6));
+		assertFalse(region.intersects(-1, 2.1, 1, 3));
+	}
+
+	@Test
+	public void testIntersectsBoundingBoxOnly() {
+		// Corner of bounding box outside of diamond
+		assertFalse(createDiamondRegion(0, 0, 2).intersects(1.5, 1.5, 1.9, 1.9));
+	}
+
+	@Test
+	public void testIntersectsContainsRegion() {
+		assertTrue(createDiamondRegion(0, 0, 2).intersects(-3, -3, 3, 3));
+	}
+
+	@Test
+	public void testIntersectsInsideRegion() {
+		Region region = createDiamondRegion(0, 0, 2);
+
+		assertTrue(region.intersects(-0.2, -0.1, 0.3, 0.4));
+		assertTrue(region.intersects(0.1, 0.2, 0.1, 0.2));
+	}
+
+	@Test
+	public void testIntersectsCrossingEdges() {
+		Region region = createDiamondRegion(0, 0, 2);
+
+		// No corner of rectangle inside region and no vertex of region inside rectangle
+		assertTrue(region.intersects(0.5, -3, 0.6, 3));
+		// Vertex of region inside rectangle
+		assertTrue(region.intersects(-0.1, 1.95, 0.1, 2.5));
+	}
+
+	@Test
+	public void testIntersectsMultiPolygon() {
+		Region region = new Region(Arrays.asList(createDiamond(0, 0, 1), createDiamond(0, 10, 1)));
+
+		assertFalse(region.intersects(-0.5, 4, 0.5, 6));
+		assertTrue(region.intersects(-0.5, 4, 0.5, 9.5));
+	}
+
+	@Test
+	public void testIntersectsEmptyRegion() {
+		Region region = new Region(Arrays.<Region.Polygon>asList(new Region.ArrayPolygon(new double[0], new double[0])));
+
+		assertFalse(region.intersects(-90, -180, 90, 180));
+	}
+
+	private static boolean slabContains(Region.EdgeIndex edgeIndex, int slab, int edge) {
+		for (int j = edgeIndex.slabStarts[slab]; j < edgeIndex.slabStarts[slab + 1]; j++) {
+			if (edgeIndex.edges[j] == edge) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reference even-odd test over all edges
+	 */
+	private static boolean scanHit(Region.Polygon polygon, double lat, double lon) {
+		boolean inside = false;
+		for (int i = 0; i < polygon.size() - 1; i++) {
+			double aLat = polygon.getLat(i), aLon = polygon.getLon(i);
+			double bLat = polygon.getLat(i + 1), bLon = polygon.getLon(i + 1);
+			if ((aLat > lat) != (bLat > lat)
+					&& lon > aLon + (lat - aLat) * (bLon - aLon) / (bLat - aLat)) {
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+	private static Region createDiamondRegion(double lat, double lon, double radius) {
+		return new Region(Arrays.asList(createDiamond(lat, lon, radius)));
+	}
+
+	private static Region.Polygon createDiamond(double lat, double lon, double radius) {
+		return new Region.ArrayPolygon(
+				new double[] {lat - radius, lat, lat + radius, lat, lat - radius},
+				new double[] {lon, lon + radius, lon, lon - radius, lon});
+	}
+
+	/**
+	 * Closed star-shaped ring with alternating inner and outer radius
+	 */
+	private static Region.Polygon createStar(double lat, double lon, double innerRadius, double outerRadius, int count) {
+		double[] lats = new double[count + 1];
+		double[] lons = new double[count + 1];
+		for (int i = 0; i < count; i++) {
+			double angle = 2 * Math.PI * i / count;
+			double radius = i % 2 == 0 ? outerRadius : innerRadius;
+			lats[i] = lat + radius * Math.sin(angle);
+			lons[i] = lon + radius * Math.cos(angle);
+		}
+		lats[count] = lats[0];
+		lons[count] = lons[0];
+		return new Region.ArrayPolygon(lats, lons);
+	}
+}